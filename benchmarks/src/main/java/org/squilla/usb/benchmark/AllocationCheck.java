@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.benchmark;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+
+/**
+ * Regression check of the bytes allocated per operation by the benchmarked
+ * hot paths, against baselines/allocation.properties. Unlike ns/op, the
+ * allocation does not depend on the machine, so the check can run anywhere:
+ * <pre>
+ * java -cp target/benchmarks.jar org.squilla.usb.benchmark.AllocationCheck [baseline]
+ * </pre>
+ * Exits with status 1 if any operation allocates more than its baseline.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class AllocationCheck {
+
+    public static final String DEFAULT_BASELINE = "baselines/allocation.properties";
+    private static final int WARMUP = 50000;
+    private static final int OPERATIONS = 200000;
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        Properties baseline = new Properties();
+        try (InputStream in = new FileInputStream(args.length > 0 ? args[0] : DEFAULT_BASELINE)) {
+            baseline.load(in);
+        }
+
+        Map<String, Callable<Object>> operations = new LinkedHashMap<>();
+        for (int blocks : new int[]{1, 128}) {
+            UsbSCSIBenchmark scsi = new UsbSCSIBenchmark();
+            scsi.blocks = blocks;
+            scsi.setUp();
+            operations.put("UsbSCSIBenchmark.read10.blocks." + blocks, () -> scsi.read10());
+            operations.put("UsbSCSIBenchmark.write10.blocks." + blocks, () -> scsi.write10());
+        }
+        WrapperBenchmark wrapper = new WrapperBenchmark();
+        wrapper.setUp();
+        operations.put("WrapperBenchmark.pullCommandBlock", wrapper::pullCommandBlock);
+        operations.put("WrapperBenchmark.drainCommandStatus", wrapper::drainCommandStatus);
+        for (int ports : new int[]{4, 7}) {
+            HubBenchmark hub = new HubBenchmark();
+            hub.ports = ports;
+            hub.setUp();
+            operations.put("HubBenchmark.parseUsbHubDescriptor.ports." + ports, hub::parseUsbHubDescriptor);
+            operations.put("HubBenchmark.decodeChangeBitmap.ports." + ports, () -> hub.decodeChangeBitmap());
+        }
+
+        boolean passed = true;
+        for (Map.Entry<String, Callable<Object>> entry : operations.entrySet()) {
+            String name = entry.getKey();
+            long measured = bytesPerOperation(entry.getValue());
+            String expected = baseline.getProperty(name);
+            if (expected == null) {
+                System.out.println("MISSING " + name + ": " + measured + " B/op");
+                passed = false;
+            } else if (measured > Long.parseLong(expected.trim())) {
+                System.out.println("FAILED  " + name + ": " + measured + " B/op, baseline " + expected.trim());
+                passed = false;
+            } else {
+                System.out.println("OK      " + name + ": " + measured + " B/op");
+            }
+        }
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static long bytesPerOperation(Callable<Object> operation) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP; i++) {
+            sink = operation.call();
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < OPERATIONS; i++) {
+            sink = operation.call();
+        }
+        long after = threads.getThreadAllocatedBytes(thread);
+        return (after - before) / OPERATIONS;
+    }
+}
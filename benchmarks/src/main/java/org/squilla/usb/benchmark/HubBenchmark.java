@@ -0,0 +1,72 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.squilla.usb.hub.HubDriver;
+import org.squilla.usb.hub.HubRequest;
+import org.squilla.usb.hub.UsbHubDescriptor;
+
+/**
+ * Hub descriptor parsing and status change bitmap decoding.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class HubBenchmark {
+
+    @Param({"4", "7"})
+    public int ports;
+    private byte[] descriptor;
+    private byte[] bitmap;
+    private int[] changed;
+
+    @Setup
+    public void setUp() {
+        descriptor = new byte[]{
+            9, 0x29, (byte) ports, 0x09, 0x00, 50, 100,
+            0x00, (byte) 0xFF};
+        // Hub and every other port changed
+        bitmap = new byte[]{(byte) 0xAB};
+        changed = new int[ports + 1];
+    }
+
+    @Benchmark
+    public UsbHubDescriptor parseUsbHubDescriptor() {
+        return HubRequest.parseUsbHubDescriptor(descriptor);
+    }
+
+    @Benchmark
+    public int decodeChangeBitmap() {
+        return HubDriver.decodeChangeBitmap(bitmap, bitmap.length, ports, changed);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.benchmark;
+
+import org.squilla.io.FrameBuffer;
+import org.squilla.usb.msd.BulkOnlyTransport;
+import org.squilla.usb.msd.CommandBlockWrapper;
+import org.squilla.usb.msd.CommandFuture;
+import org.squilla.usb.msd.CommandListener;
+import org.squilla.usb.msd.CommandStatusWrapper;
+
+/**
+ * Transport completing every command at once with a passed status, so
+ * that benchmarks measure the command set layer alone.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class StubTransport extends BulkOnlyTransport {
+
+    private FrameBuffer commandBuffer;
+
+    public StubTransport() {
+        super(null, null);
+        commandBuffer = new FrameBuffer(new byte[64]);
+    }
+
+    public CommandFuture executeCommandBlockAsync(CommandBlockWrapper cbw, CommandListener listener,
+            int priority, long deadline) {
+        // Encode the CBW as the worker would.
+        commandBuffer.rewind();
+        cbw.pull(commandBuffer);
+        return completeCommandBlock(cbw, listener, priority, deadline,
+                CommandStatusWrapper.STATUS_COMMAND_PASSED, 0);
+    }
+}
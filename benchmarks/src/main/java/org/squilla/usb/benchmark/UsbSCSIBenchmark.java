@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.squilla.usb.msd.UsbSCSI;
+
+/**
+ * Per-command overhead of READ(10) and WRITE(10) round trips through
+ * {@link UsbSCSI}, against a transport that completes at once.
+ * Run with -prof gc to see the allocation rate.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class UsbSCSIBenchmark {
+
+    @Param({"1", "128"})
+    public int blocks;
+    private UsbSCSI usbSCSI;
+    private byte[] buffer;
+
+    @Setup
+    public void setUp() {
+        usbSCSI = new UsbSCSI(new StubTransport());
+        usbSCSI.setBlockLength(512);
+        buffer = new byte[blocks * 512];
+    }
+
+    @Benchmark
+    public int read10() {
+        return usbSCSI.read10(false, false, false, 0x1000, (short) blocks, (byte) 0, buffer);
+    }
+
+    @Benchmark
+    public int write10() {
+        return usbSCSI.write10(false, false, false, false, 0x1000, (short) blocks, (byte) 0, buffer);
+    }
+}
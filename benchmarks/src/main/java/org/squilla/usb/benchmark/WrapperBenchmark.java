@@ -0,0 +1,78 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.squilla.io.FrameBuffer;
+import org.squilla.usb.msd.CommandBlockWrapper;
+import org.squilla.usb.msd.CommandStatusWrapper;
+
+/**
+ * Encoding of CBWs and decoding of CSWs.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class WrapperBenchmark {
+
+    private byte[] rawBuffer;
+    private FrameBuffer frameBuffer;
+    private CommandBlockWrapper cbw;
+    private CommandStatusWrapper csw;
+
+    @Setup
+    public void setUp() {
+        rawBuffer = new byte[64];
+        frameBuffer = new FrameBuffer(rawBuffer);
+        cbw = new CommandBlockWrapper();
+        cbw.setTag(0x12345678);
+        cbw.setDataTransferLength(65536);
+        cbw.setFlags(CommandBlockWrapper.CBW_DIRECTION_IN);
+        cbw.setCBLength((byte) 10);
+        cbw.setCB(new byte[]{0x28, 0, 0, 0, 0x10, 0, 0, 0, (byte) 0x80, 0, 0, 0, 0, 0, 0, 0});
+        csw = new CommandStatusWrapper();
+    }
+
+    @Benchmark
+    public byte[] pullCommandBlock() {
+        frameBuffer.rewind();
+        frameBuffer.clean(CommandBlockWrapper.CBW_PACKET_SIZE);
+        cbw.pull(frameBuffer);
+        return rawBuffer;
+    }
+
+    @Benchmark
+    public CommandStatusWrapper drainCommandStatus() {
+        frameBuffer.rewind();
+        csw.drain(frameBuffer);
+        return csw;
+    }
+}
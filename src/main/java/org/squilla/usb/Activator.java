@@ -28,6 +28,10 @@ import org.squilla.usb.hub.HubDriver;
 import org.squilla.usb.msd.BulkOnlyTransportDriver;
 
 /**
+ * Starts the USB services.
+ * Drivers and the HubOsDriver are registered as {@link LazyServiceFactory}s and
+ * built only when first requested, and the JSR-80 services are initialized on a
+ * separate thread, so the framework start thread returns quickly.
  *
  * @author Shotaro Uchida <fantom@xmaker.mx>
  */
@@ -35,28 +39,77 @@ public class Activator implements BundleActivator {
     
     private LogService log;
     private UsbDeviceManager usbDeviceManager;
+    private StartupMetrics startupMetrics;
+    private LazyServiceFactory[] drivers;
+    private Thread servicesThread;
+    private UsbServices services;
+    private boolean stopped;
     
-    public void start(BundleContext bc) throws Exception {
+    public void start(final BundleContext bc) throws Exception {
+        startupMetrics = new StartupMetrics();
         refreshLogService(bc);
         
         log(LogService.LOG_INFO, "Start USB Services(JSR-80)");
-        UsbServices services = UsbHostManager.getUsbServices();
+        bc.registerService(StartupMetrics.class.getName(), startupMetrics, null);
         usbDeviceManager = new UsbDeviceManager(bc);
-        services.addUsbServicesListener(usbDeviceManager);
-        String driverClassName = bc.getProperty(HubOsDriver.DRIVER_CLASS);
+        bc.registerService(UsbDescriptorCache.class.getName(), usbDeviceManager.getDescriptorCache(), null);
+        final String driverClassName = bc.getProperty(HubOsDriver.DRIVER_CLASS);
+        bc.registerService(HubOsDriver.class.getName(), new LazyServiceFactory(HubOsDriver.class.getName(), startupMetrics) {
+
+            protected Object createService() throws Exception {
+                return Class.forName(driverClassName).newInstance();
+            }
+        }, null);
+        
+        log(LogService.LOG_INFO, "Load Standard Class Drivers");
+        drivers = new LazyServiceFactory[]{
+            new LazyServiceFactory(HubDriver.class.getName(), startupMetrics) {
+
+                protected Object createService() {
+                    return new HubDriver(bc);
+                }
+            },
+            new LazyServiceFactory(BulkOnlyTransportDriver.class.getName(), startupMetrics) {
+
+                protected Object createService() {
+                    return new BulkOnlyTransportDriver(bc);
+                }
+            }
+        };
+        registerDriver(bc, drivers[0], "org.squilla.usb.HubDriver.1.0");
+        registerDriver(bc, drivers[1], "org.squilla.usb.BulkOnlyTransportDriver.1.0");
+
+        servicesThread = new Thread(new Runnable() {
+
+            public void run() {
+                startServices();
+            }
+        }, "UsbServices");
+        servicesThread.setDaemon(true);
+        servicesThread.start();
+        startupMetrics.activatorStarted();
+    }
+
+    /**
+     * Resolves the JSR-80 services and starts listening for devices.
+     */
+    private void startServices() {
         try {
-            Class driverClass = Class.forName(driverClassName);
-            bc.registerService(HubOsDriver.class.getName(), driverClass.newInstance(), null);
+            UsbServices usbServices = UsbHostManager.getUsbServices();
+            synchronized (this) {
+                if (stopped) {
+                    return;
+                }
+                services = usbServices;
+                services.addUsbServicesListener(usbDeviceManager);
+            }
+            startupMetrics.servicesStarted();
         } catch (Exception ex) {
-            log(LogService.LOG_ERROR, "Can't load HubOsDriver implementation: " + driverClassName + ", " + ex);
+            log(LogService.LOG_ERROR, "Can't start USB Services: " + ex);
         }
-        
-        log(LogService.LOG_INFO, "Load Standard Class Drivers");
-        registerDriver(bc, new HubDriver(bc), "org.squilla.usb.HubDriver.1.0");
-        registerDriver(bc, new BulkOnlyTransportDriver(bc), "org.squilla.usb.BulkOnlyTransportDriver.1.0");
     }
     
-    private void registerDriver(BundleContext bc, Driver driver, String id) {
+    private void registerDriver(BundleContext bc, LazyServiceFactory driver, String id) {
         Hashtable props = new Hashtable();
         props.put(org.osgi.service.device.Constants.DRIVER_ID, id);
         bc.registerService(Driver.class.getName(), driver, props);
@@ -67,8 +120,20 @@ public class Activator implements BundleActivator {
         
         log(LogService.LOG_INFO, "Stop USB Services(JSR-80)");
 
-        UsbServices services = UsbHostManager.getUsbServices();
-        services.removeUsbServicesListener(usbDeviceManager);
+        synchronized (this) {
+            stopped = true;
+            if (services != null) {
+                services.removeUsbServicesListener(usbDeviceManager);
+            }
+        }
+        usbDeviceManager.close();
+        // Release the interfaces claimed by the drivers that were built.
+        for (int i = 0; i < drivers.length; i++) {
+            UsbDeviceDriver driver = (UsbDeviceDriver) drivers[i].getCreatedService();
+            if (driver != null) {
+                driver.close();
+            }
+        }
         // Actual "Usb Services" cannot to stop.
     }
     
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb;
+
+import java.util.Hashtable;
+import java.util.Vector;
+import net.sf.microlog.core.Logger;
+import net.sf.microlog.core.LoggerFactory;
+
+/**
+ * Runs enumeration tasks on a bounded number of threads.
+ * Tasks submitted with the same key run one at a time in submission order,
+ * while tasks of different keys run in parallel.
+ * Threads are started on demand and stop after being idle for a while.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class EnumerationExecutor {
+
+    public static final int DEFAULT_THREADS = 4;
+    private static final long KEEP_ALIVE = 10000;
+    private int maxThreads;
+    private int threads;
+    private int idleThreads;
+    private int pending;
+    private int running;
+    private boolean closed;
+    // Key to Vector of tasks, present while the key has work queued or running.
+    private Hashtable queues;
+    // Keys whose next task may run now.
+    private Vector ready;
+    private Logger logger = LoggerFactory.getLogger(EnumerationExecutor.class);
+
+    public EnumerationExecutor() {
+        this(DEFAULT_THREADS);
+    }
+
+    public EnumerationExecutor(int maxThreads) {
+        this.maxThreads = Math.max(1, maxThreads);
+        queues = new Hashtable();
+        ready = new Vector();
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * Queues task after every earlier task of the same key.
+     * @return false if the executor is closed
+     */
+    public synchronized boolean execute(Object key, Runnable task) {
+        if (closed) {
+            return false;
+        }
+        Vector queue = (Vector) queues.get(key);
+        if (queue == null) {
+            queue = new Vector();
+            queues.put(key, queue);
+            ready.add(key);
+        }
+        queue.add(task);
+        pending++;
+        if (idleThreads > 0) {
+            notifyAll();
+        }
+        // Idle workers take one ready key each; start more for the rest.
+        if (ready.size() > idleThreads && threads < maxThreads) {
+            startWorker();
+        }
+        return true;
+    }
+
+    /**
+     * @return tasks queued or running
+     */
+    public synchronized int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * Waits until every queued task has finished.
+     * @return false on timeout
+     */
+    public synchronized boolean awaitIdle(long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (pending > 0) {
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Discards the queued tasks; running tasks are left to finish.
+     */
+    public synchronized void close() {
+        closed = true;
+        // Running tasks stay pending until they finish.
+        pending = running;
+        queues.clear();
+        ready.clear();
+        notifyAll();
+    }
+
+    /**
+     * Takes the next task of a ready key, or returns null when the thread should stop.
+     * The key is not ready again until {@link #done(Object)}.
+     */
+    private synchronized Runnable take(Object[] key) throws InterruptedException {
+        long end = System.currentTimeMillis() + KEEP_ALIVE;
+        while (ready.isEmpty()) {
+            long remaining = end - System.currentTimeMillis();
+            if (closed || remaining <= 0) {
+                return null;
+            }
+            idleThreads++;
+            try {
+                wait(remaining);
+            } finally {
+                idleThreads--;
+            }
+        }
+        running++;
+        key[0] = ready.remove(0);
+        Vector queue = (Vector) queues.get(key[0]);
+        return (Runnable) queue.get(0);
+    }
+
+    private synchronized void done(Object key) {
+        running--;
+        pending--;
+        Vector queue = (Vector) queues.get(key);
+        if (queue != null) {
+            queue.remove(0);
+            if (queue.isEmpty()) {
+                queues.remove(key);
+            } else {
+                ready.add(key);
+            }
+        }
+        // Wake idle workers as well as awaitIdle().
+        notifyAll();
+    }
+
+    private synchronized void exited() {
+        threads--;
+        if (!ready.isEmpty() && threads < maxThreads && !closed) {
+            // A task arrived while this thread was giving up.
+            startWorker();
+        }
+    }
+
+    private void startWorker() {
+        threads++;
+        Thread thread = new Thread(new Worker(), EnumerationExecutor.class.getName() + "-" + threads);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private class Worker implements Runnable {
+
+        public void run() {
+            Object[] key = new Object[1];
+            try {
+                Runnable task;
+                while ((task = take(key)) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException ex) {
+                        logger.warn(ex);
+                    } finally {
+                        done(key[0]);
+                    }
+                }
+            } catch (InterruptedException ex) {
+            } finally {
+                exited();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb;
+
+/**
+ * Open addressing hash set of int keys, without boxing.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class IntHashSet {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private int[] keys;
+    private boolean[] used;
+    private int size;
+
+    public IntHashSet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IntHashSet(int capacity) {
+        int length = DEFAULT_CAPACITY;
+        while (length < capacity * 2) {
+            length <<= 1;
+        }
+        keys = new int[length];
+        used = new boolean[length];
+    }
+
+    /**
+     * @return false if the key was already present
+     */
+    public synchronized boolean add(int key) {
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        while (used[index]) {
+            if (keys[index] == key) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        used[index] = true;
+        size++;
+        return true;
+    }
+
+    public synchronized boolean contains(int key) {
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        while (used[index]) {
+            if (keys[index] == key) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        keys = new int[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        size = 0;
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int index = hash(oldKeys[i]) & mask;
+                while (used[index]) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = oldKeys[i];
+                used[index] = true;
+                size++;
+            }
+        }
+    }
+
+    private static int hash(int key) {
+        // Spread VID and PID bits over the low bits used as the index.
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb;
+
+/**
+ * Histogram of latencies in milliseconds with power of two buckets.
+ * Bucket 0 counts latencies below 1 ms, bucket i counts latencies
+ * from 2^(i-1) ms up to 2^i ms, and the last bucket counts the rest.
+ * Recording does not allocate.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class LatencyHistogram {
+
+    public static final int BUCKET_COUNT = 16;
+    private long[] buckets;
+    private long count;
+    private long total;
+    private long max;
+
+    public LatencyHistogram() {
+        buckets = new long[BUCKET_COUNT];
+    }
+
+    public synchronized void record(long millis) {
+        if (millis < 0) {
+            // Wall clock moved back.
+            millis = 0;
+        }
+        int index = 0;
+        for (long v = millis; v > 0 && index < BUCKET_COUNT - 1; v >>= 1) {
+            index++;
+        }
+        buckets[index]++;
+        count++;
+        total += millis;
+        if (millis > max) {
+            max = millis;
+        }
+    }
+
+    /**
+     * @return the exclusive upper bound of the bucket in milliseconds,
+     * or Long.MAX_VALUE for the last bucket
+     */
+    public static long getBucketLimit(int index) {
+        if (index >= BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        return 1L << index;
+    }
+
+    public synchronized long[] getBuckets() {
+        long[] copy = new long[BUCKET_COUNT];
+        System.arraycopy(buckets, 0, copy, 0, BUCKET_COUNT);
+        return copy;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized long getMean() {
+        return count == 0 ? 0 : total / count;
+    }
+
+    /**
+     * @param fraction between 0 and 1, e.g. 0.99
+     * @return the upper bound of the bucket holding the percentile
+     */
+    public synchronized long getPercentile(double fraction) {
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(getBucketLimit(i), max);
+            }
+        }
+        return 0;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = 0;
+        }
+        count = 0;
+        total = 0;
+        max = 0;
+    }
+
+    public synchronized String toString() {
+        return "count=" + count + " mean=" + getMean() + " p99=" + getPercentile(0.99) + " max=" + max;
+    }
+}
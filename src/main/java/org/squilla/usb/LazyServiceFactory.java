@@ -0,0 +1,80 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Registers a service whose object is only built when first requested,
+ * for example when the Device Manager looks for a driver of a new device.
+ * Every bundle shares the same object.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public abstract class LazyServiceFactory implements ServiceFactory {
+
+    private String name;
+    private StartupMetrics metrics;
+    private Object service;
+    private boolean failed;
+
+    /**
+     * @param name the name the creation time is recorded under
+     */
+    public LazyServiceFactory(String name, StartupMetrics metrics) {
+        this.name = name;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Builds the service object, called once on first use.
+     * A failure is not retried.
+     * @return the service, or null if it can not be built
+     */
+    protected abstract Object createService() throws Exception;
+
+    public synchronized boolean isCreated() {
+        return service != null;
+    }
+
+    /**
+     * @return the service if it has been built, without building it
+     */
+    public synchronized Object getCreatedService() {
+        return service;
+    }
+
+    public synchronized Object getService(Bundle bundle, ServiceRegistration registration) {
+        if (service == null && !failed) {
+            long start = System.currentTimeMillis();
+            try {
+                service = createService();
+            } catch (Exception ex) {
+                failed = true;
+                metrics.serviceFailed(name, ex);
+                return null;
+            }
+            metrics.serviceCreated(name, System.currentTimeMillis() - start);
+        }
+        return service;
+    }
+
+    public void ungetService(Bundle bundle, ServiceRegistration registration, Object service) {
+        // Kept for the next bundle; dropped with the registration.
+    }
+}
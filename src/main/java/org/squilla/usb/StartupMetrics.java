@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import net.sf.microlog.core.Logger;
+import net.sf.microlog.core.LoggerFactory;
+
+/**
+ * Startup timings of the bundle, registered as a service.
+ * Times are in milliseconds.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class StartupMetrics {
+
+    private long startTime;
+    private long activatorTime = -1;
+    private long servicesTime = -1;
+    private Hashtable creationTimes;
+    private Hashtable failures;
+    private Logger logger = LoggerFactory.getLogger(StartupMetrics.class);
+
+    public StartupMetrics() {
+        startTime = System.currentTimeMillis();
+        creationTimes = new Hashtable();
+        failures = new Hashtable();
+    }
+
+    synchronized void activatorStarted() {
+        activatorTime = System.currentTimeMillis() - startTime;
+    }
+
+    synchronized void servicesStarted() {
+        servicesTime = System.currentTimeMillis() - startTime;
+        if (logger.isDebugEnabled()) {
+            logger.debug("USB services ready in " + servicesTime + "ms");
+        }
+    }
+
+    synchronized void serviceCreated(String name, long time) {
+        creationTimes.put(name, new Long(time));
+        if (logger.isDebugEnabled()) {
+            logger.debug(name + " created in " + time + "ms");
+        }
+    }
+
+    synchronized void serviceFailed(String name, Exception ex) {
+        failures.put(name, ex.toString());
+        logger.error("Can't create " + name + ": " + ex);
+    }
+
+    /**
+     * @return the time BundleActivator.start took, or -1 while starting
+     */
+    public synchronized long getActivatorTime() {
+        return activatorTime;
+    }
+
+    /**
+     * @return the time from start until the JSR-80 services were listening, or -1
+     */
+    public synchronized long getServicesTime() {
+        return servicesTime;
+    }
+
+    /**
+     * @return the time the named lazy service took to build, or -1 if not built yet
+     */
+    public synchronized long getCreationTime(String name) {
+        Long time = (Long) creationTimes.get(name);
+        return time == null ? -1 : time.longValue();
+    }
+
+    /**
+     * @return the error of a lazy service that could not be built, or null
+     */
+    public synchronized String getFailure(String name) {
+        return (String) failures.get(name);
+    }
+
+    public synchronized String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("activator=").append(activatorTime).append("ms");
+        sb.append(" services=").append(servicesTime).append("ms");
+        Enumeration e = creationTimes.keys();
+        while (e.hasMoreElements()) {
+            Object name = e.nextElement();
+            sb.append(' ').append(name).append('=').append(creationTimes.get(name)).append("ms");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb;
+
+import java.util.Hashtable;
+import javax.usb.UsbDevice;
+
+/**
+ * Shared {@link UsbDeviceInfo} of every attached device,
+ * filled at attach by the {@link UsbDeviceManager} and registered as a service
+ * so that drivers reuse the descriptors instead of reading them again.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class UsbDescriptorCache {
+
+    private Hashtable infos;
+
+    public UsbDescriptorCache() {
+        infos = new Hashtable();
+    }
+
+    /**
+     * Returns the info of usbDevice, creating it on first use.
+     */
+    public synchronized UsbDeviceInfo get(UsbDevice usbDevice) {
+        UsbDeviceInfo info = (UsbDeviceInfo) infos.get(usbDevice);
+        if (info == null) {
+            info = new UsbDeviceInfo(usbDevice);
+            infos.put(usbDevice, info);
+        }
+        return info;
+    }
+
+    public synchronized void remove(UsbDevice usbDevice) {
+        infos.remove(usbDevice);
+    }
+
+    public synchronized int size() {
+        return infos.size();
+    }
+
+    public synchronized void clear() {
+        infos.clear();
+    }
+}
@@ -15,8 +15,7 @@
  */
 package org.squilla.usb;
 
-import java.util.List;
-import java.util.Vector;
+import java.util.Hashtable;
 import javax.usb.UsbDevice;
 import javax.usb.UsbException;
 import javax.usb.UsbInterface;
@@ -24,6 +23,7 @@ import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.device.Device;
 import org.osgi.service.device.Driver;
+import org.squilla.usb.hub.HubOsDriver;
 
 /**
  *
@@ -36,51 +36,106 @@ public abstract class UsbDeviceDriver implements Driver {
     public static final int CLASS_VENDOR = 0xFF;
     public static final int MATCH_CLASS = 4;
     public static final int MATCH_VID_PID = 2;
-    private List deviceIDList;
+    private IntHashSet deviceCodes;
+    private Hashtable deviceIDs;
     private BundleContext bc;
     
     public UsbDeviceDriver(BundleContext bc) {
         this.bc = bc;
-        deviceIDList = new Vector();
+        deviceCodes = new IntHashSet();
+        deviceIDs = new Hashtable();
     }
     
     protected BundleContext getBundleContext() {
         return bc;
     }
     
+    /**
+     * Returns the shared descriptors of usbDevice, read without the cache
+     * when no {@link UsbDescriptorCache} is registered.
+     */
+    protected UsbDeviceInfo getDeviceInfo(UsbDevice usbDevice) {
+        ServiceReference ref = bc.getServiceReference(UsbDescriptorCache.class.getName());
+        if (ref != null) {
+            UsbDescriptorCache cache = (UsbDescriptorCache) bc.getService(ref);
+            if (cache != null) {
+                UsbDeviceInfo info = cache.get(usbDevice);
+                bc.ungetService(ref);
+                return info;
+            }
+        }
+        return new UsbDeviceInfo(usbDevice);
+    }
+    
+    /**
+     * Returns the serial, VID/PID and interface number properties that
+     * identify the device service of usbInterface, for services registered
+     * on its behalf.
+     */
+    protected Hashtable getDeviceProperties(UsbDevice usbDevice, UsbInterface usbInterface) {
+        HubOsDriver os = null;
+        ServiceReference ref = bc.getServiceReference(HubOsDriver.class.getName());
+        if (ref != null) {
+            os = (HubOsDriver) bc.getService(ref);
+        }
+        Hashtable props = new Hashtable();
+        try {
+            props.put(org.osgi.service.device.Constants.DEVICE_SERIAL, UsbDeviceManager.getDeviceSerial(os, usbDevice));
+        } finally {
+            if (os != null) {
+                bc.ungetService(ref);
+            }
+        }
+        UsbDeviceInfo info = getDeviceInfo(usbDevice);
+        props.put(UsbDeviceManager.DEVICE_VID_PID, info.getDeviceID());
+        props.put(UsbDeviceManager.DEVICE_CODE, info.getDeviceCode());
+        byte number = usbInterface.getUsbInterfaceDescriptor().bInterfaceNumber();
+        props.put(UsbDeviceManager.DEVICE_INTERFACE_NUMBER, new Integer(number & 0xFF));
+        return props;
+    }
+    
     public abstract int getClassCode();
     
     public void addDeviceID(int vid, int pid) {
-        deviceIDList.add(UsbDeviceManager.getDeviceID(vid, pid));
+        deviceCodes.add(UsbDeviceManager.getDeviceCode(vid, pid));
+        deviceIDs.put(UsbDeviceManager.getDeviceID(vid, pid), Boolean.TRUE);
     }
     
-    private boolean isIDMatched(String id) {
-        for (int i = 0; i < deviceIDList.size(); i++) {
-            String myID = deviceIDList.get(i).toString();
-            if (myID.equals(id)) {
-                return true;
-            }
+    private boolean isIDMatched(ServiceReference sr) {
+        Object code = sr.getProperty(UsbDeviceManager.DEVICE_CODE);
+        if (code instanceof Integer) {
+            return deviceCodes.contains(((Integer) code).intValue());
         }
-        return false;
+        // Registered without the integer properties
+        Object id = sr.getProperty(UsbDeviceManager.DEVICE_VID_PID);
+        return id != null && deviceIDs.containsKey(id.toString());
     }
     
-    private boolean isClassMatched(String deviceClass) {
-        return deviceClass.equals(UsbDeviceManager.getClassCode(this.getClassCode()));
+    private boolean isClassMatched(ServiceReference sr) {
+        Object classCode = sr.getProperty(UsbDeviceManager.DEVICE_CLASS_CODE);
+        if (classCode instanceof Integer) {
+            return ((Integer) classCode).intValue() == (getClassCode() & 0xFF);
+        }
+        Object deviceClass = sr.getProperty(UsbDeviceManager.DEVICE_CLASS);
+        return deviceClass != null && deviceClass.toString().equals(UsbDeviceManager.getClassCode(getClassCode()));
     }
     
     public abstract boolean attach(UsbDevice usbDevice, UsbInterface usbInterface) throws UsbException;
 
+    /**
+     * Detaches every attached interface, when the bundle stops.
+     */
+    public void close() {
+    }
+
     public int match(ServiceReference sr) throws Exception {
         // Make sure device category is jsr80
-        String cat = sr.getProperty(org.osgi.service.device.Constants.DEVICE_CATEGORY).toString();
-        if (!cat.equals(UsbDeviceManager.DEVICE_CATEGORY_NAME)) {
+        if (!UsbDeviceManager.DEVICE_CATEGORY_NAME.equals(sr.getProperty(org.osgi.service.device.Constants.DEVICE_CATEGORY))) {
             return Device.MATCH_NONE;
         }
         
-        String deviceClass = sr.getProperty(UsbDeviceManager.DEVICE_CLASS).toString();
-        if (isClassMatched(deviceClass)) {
-            String driverID = sr.getProperty(UsbDeviceManager.DEVICE_VID_PID).toString();
-            if (isIDMatched(driverID)) {
+        if (isClassMatched(sr)) {
+            if (isIDMatched(sr)) {
                 return MATCH_CLASS | MATCH_VID_PID;
             } else {
                 return MATCH_CLASS;
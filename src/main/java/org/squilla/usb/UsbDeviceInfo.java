@@ -0,0 +1,161 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb;
+
+import java.util.List;
+import javax.usb.UsbConfiguration;
+import javax.usb.UsbConfigurationDescriptor;
+import javax.usb.UsbDevice;
+import javax.usb.UsbDeviceDescriptor;
+import javax.usb.UsbInterface;
+import javax.usb.UsbInterfaceDescriptor;
+import net.sf.microlog.core.Logger;
+import net.sf.microlog.core.LoggerFactory;
+import org.squilla.usb.hub.UsbHubDescriptor;
+
+/**
+ * Descriptors and strings of one attached device, read once and then shared.
+ * Strings are read on first use; a string the device does not declare
+ * costs no control transfer at all.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class UsbDeviceInfo {
+
+    private static final int STRING_MANUFACTURER = 0;
+    private static final int STRING_PRODUCT = 1;
+    private static final int STRING_SERIAL_NUMBER = 2;
+    private UsbDevice usbDevice;
+    private UsbDeviceDescriptor deviceDescriptor;
+    private UsbConfigurationDescriptor configurationDescriptor;
+    private UsbInterfaceDescriptor[] interfaceDescriptors;
+    private String deviceID;
+    private Integer deviceCode;
+    private String[] strings;
+    private boolean[] stringsRead;
+    private UsbHubDescriptor hubDescriptor;
+    private Logger logger = LoggerFactory.getLogger(UsbDeviceInfo.class);
+
+    public UsbDeviceInfo(UsbDevice usbDevice) {
+        this.usbDevice = usbDevice;
+        deviceDescriptor = usbDevice.getUsbDeviceDescriptor();
+        deviceID = UsbDeviceManager.getDeviceID(deviceDescriptor.idVendor(), deviceDescriptor.idProduct());
+        deviceCode = new Integer(UsbDeviceManager.getDeviceCode(deviceDescriptor.idVendor(), deviceDescriptor.idProduct()));
+        UsbConfiguration configuration = usbDevice.getActiveUsbConfiguration();
+        if (configuration != null) {
+            configurationDescriptor = configuration.getUsbConfigurationDescriptor();
+            List interfaceList = configuration.getUsbInterfaces();
+            interfaceDescriptors = new UsbInterfaceDescriptor[interfaceList.size()];
+            for (int i = 0; i < interfaceDescriptors.length; i++) {
+                interfaceDescriptors[i] = ((UsbInterface) interfaceList.get(i)).getUsbInterfaceDescriptor();
+            }
+        } else {
+            interfaceDescriptors = new UsbInterfaceDescriptor[0];
+        }
+        strings = new String[3];
+        stringsRead = new boolean[3];
+    }
+
+    public UsbDevice getUsbDevice() {
+        return usbDevice;
+    }
+
+    public UsbDeviceDescriptor getDeviceDescriptor() {
+        return deviceDescriptor;
+    }
+
+    /**
+     * @return the descriptor of the configuration active at attach, or null
+     */
+    public UsbConfigurationDescriptor getConfigurationDescriptor() {
+        return configurationDescriptor;
+    }
+
+    /**
+     * @return the interface descriptors of the active configuration
+     */
+    public UsbInterfaceDescriptor[] getInterfaceDescriptors() {
+        return interfaceDescriptors;
+    }
+
+    /**
+     * @see UsbDeviceManager#getDeviceID(int, int)
+     */
+    public String getDeviceID() {
+        return deviceID;
+    }
+
+    /**
+     * @see UsbDeviceManager#getDeviceCode(int, int)
+     */
+    public Integer getDeviceCode() {
+        return deviceCode;
+    }
+
+    public String getManufacturerString() {
+        return getString(STRING_MANUFACTURER, deviceDescriptor.iManufacturer());
+    }
+
+    public String getProductString() {
+        return getString(STRING_PRODUCT, deviceDescriptor.iProduct());
+    }
+
+    public String getSerialNumberString() {
+        return getString(STRING_SERIAL_NUMBER, deviceDescriptor.iSerialNumber());
+    }
+
+    /**
+     * @return the hub descriptor stored by the hub driver, or null
+     */
+    public synchronized UsbHubDescriptor getHubDescriptor() {
+        return hubDescriptor;
+    }
+
+    public synchronized void setHubDescriptor(UsbHubDescriptor hubDescriptor) {
+        this.hubDescriptor = hubDescriptor;
+    }
+
+    /**
+     * Reads a string once; failures are remembered as null.
+     */
+    private synchronized String getString(int kind, byte index) {
+        if (stringsRead[kind]) {
+            return strings[kind];
+        }
+        stringsRead[kind] = true;
+        if (index == 0) {
+            return null;
+        }
+        try {
+            switch (kind) {
+            case STRING_MANUFACTURER:
+                strings[kind] = usbDevice.getManufacturerString();
+                break;
+            case STRING_PRODUCT:
+                strings[kind] = usbDevice.getProductString();
+                break;
+            default:
+                strings[kind] = usbDevice.getSerialNumberString();
+                break;
+            }
+        } catch (Exception ex) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Can't read string " + index + ": " + ex);
+            }
+        }
+        return strings[kind];
+    }
+}
@@ -15,8 +15,10 @@
  */
 package org.squilla.usb;
 
+import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Vector;
 import javax.usb.UsbDevice;
 import javax.usb.UsbInterface;
 import javax.usb.UsbInterfaceDescriptor;
@@ -24,9 +26,17 @@ import javax.usb.event.UsbServicesEvent;
 import javax.usb.event.UsbServicesListener;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 import org.squilla.usb.hub.HubOsDriver;
 
 /**
+ * Registers attached USB devices, or their interfaces, as OSGi devices.
+ * The registrations are indexed by device, so a detach unregisters them
+ * without searching the service registry.
+ * <p>
+ * Registration runs on an {@link EnumerationExecutor}, off the JSR-80 listener
+ * thread. Devices, and the interfaces of a composite device, are registered in
+ * parallel; the tasks of one device run in the order of its events.
  *
  * @author Shotaro Uchida <fantom@xmaker.mx>
  */
@@ -37,11 +47,43 @@ public class UsbDeviceManager implements UsbServicesListener {
     public static final String ID_CLASS = "CLASS";
     public static final String DEVICE_CLASS = "DEVICE_CLASS";
     public static final String DEVICE_VID_PID = "DEVICE_VID_PID";
+    /** Integer class code property, matched without string formatting */
+    public static final String DEVICE_CLASS_CODE = "DEVICE_CLASS_CODE";
+    /** Integer VID &lt;&lt; 16 | PID property */
+    public static final String DEVICE_CODE = "DEVICE_CODE";
+    /** Integer interface number property of interface services */
+    public static final String DEVICE_INTERFACE_NUMBER = "DEVICE_INTERFACE_NUMBER";
     public static final String DEVICE_CATEGORY_NAME = "javax.usb";
+    /** Framework property giving the number of enumeration threads */
+    public static final String ENUMERATION_THREADS = "org.squilla.usb.enumerationThreads";
     private BundleContext bc;
+    private Hashtable registrations;
+    private UsbDescriptorCache descriptorCache;
+    private ServiceReference osDriverRef;
+    private HubOsDriver osDriver;
+    private EnumerationExecutor executor;
 
     public UsbDeviceManager(BundleContext bc) {
         this.bc = bc;
+        registrations = new Hashtable();
+        descriptorCache = new UsbDescriptorCache();
+        int threads = EnumerationExecutor.DEFAULT_THREADS;
+        String value = bc.getProperty(ENUMERATION_THREADS);
+        if (value != null) {
+            try {
+                threads = Integer.parseInt(value.trim());
+            } catch (NumberFormatException ex) {
+            }
+        }
+        executor = new EnumerationExecutor(threads);
+    }
+
+    public EnumerationExecutor getEnumerationExecutor() {
+        return executor;
+    }
+
+    public UsbDescriptorCache getDescriptorCache() {
+        return descriptorCache;
     }
     
     public static String getDeviceID(int vid, int pid) {
@@ -49,6 +91,13 @@ public class UsbDeviceManager implements UsbServicesListener {
                ID_PID + "_" + Integer.toHexString(pid & 0xFFFF);
     }
     
+    /**
+     * @return VID in the upper and PID in the lower 16 bits
+     */
+    public static int getDeviceCode(int vid, int pid) {
+        return ((vid & 0xFFFF) << 16) | (pid & 0xFFFF);
+    }
+    
     public static String getClassCode(int classCode) {
         return ID_CLASS + "_" + Integer.toHexString(classCode & 0xFF);
     }
@@ -60,61 +109,195 @@ public class UsbDeviceManager implements UsbServicesListener {
     }
     
     public String getDeviceSerial(UsbDevice usbDevice) {
-        ServiceReference ref = bc.getServiceReference(HubOsDriver.class.getName());
-        if (ref != null) {
-            HubOsDriver os = (HubOsDriver) bc.getService(ref);
+        return getDeviceSerial(getHubOsDriver(), usbDevice);
+    }
+
+    /**
+     * @param os the HubOsDriver, or null if none is registered
+     */
+    public static String getDeviceSerial(HubOsDriver os, UsbDevice usbDevice) {
+        if (os != null) {
             return "DEVADDR_" + os.getDeviceAddress(usbDevice).toString();
         }
         // FIXME: This is not an unique number.
         return "PORT_" + usbDevice.getParentUsbPort().getPortNumber();
     }
 
-    private void registerDevice(UsbDevice usbDevice, Object device, int classCode) {
+    /**
+     * Returns the HubOsDriver service, looked up again only once it is unregistered.
+     */
+    private synchronized HubOsDriver getHubOsDriver() {
+        if (osDriverRef != null && osDriverRef.getBundle() == null) {
+            // Unregistered
+            osDriverRef = null;
+            osDriver = null;
+        }
+        if (osDriverRef == null) {
+            ServiceReference ref = bc.getServiceReference(HubOsDriver.class.getName());
+            if (ref == null) {
+                return null;
+            }
+            osDriver = (HubOsDriver) bc.getService(ref);
+            if (osDriver != null) {
+                osDriverRef = ref;
+            }
+        }
+        return osDriver;
+    }
+
+    private ServiceRegistration registerDevice(UsbDeviceInfo info, String serial, Object device, int classCode) {
         Hashtable props = new Hashtable();
         
         props.put(org.osgi.service.device.Constants.DEVICE_CATEGORY, DEVICE_CATEGORY_NAME);
-        try {
-            props.put(org.osgi.service.device.Constants.DEVICE_DESCRIPTION, usbDevice.getProductString());
-        } catch (Exception ex) {
+        String product = info.getProductString();
+        if (product != null) {
+            props.put(org.osgi.service.device.Constants.DEVICE_DESCRIPTION, product);
         }
-        props.put(org.osgi.service.device.Constants.DEVICE_SERIAL, getDeviceSerial(usbDevice));
+        props.put(org.osgi.service.device.Constants.DEVICE_SERIAL, serial);
         
-        props.put(DEVICE_VID_PID, getDeviceID(usbDevice));
+        props.put(DEVICE_VID_PID, info.getDeviceID());
         props.put(DEVICE_CLASS, getClassCode(classCode));
-        bc.registerService(device.getClass().getName(), device, props);
+        props.put(DEVICE_CLASS_CODE, new Integer(classCode & 0xFF));
+        props.put(DEVICE_CODE, info.getDeviceCode());
+        if (device instanceof UsbInterface) {
+            byte number = ((UsbInterface) device).getUsbInterfaceDescriptor().bInterfaceNumber();
+            props.put(DEVICE_INTERFACE_NUMBER, new Integer(number & 0xFF));
+        }
+        return bc.registerService(device.getClass().getName(), device, props);
     }
 
     public void usbDeviceAttached(UsbServicesEvent event) {
-        UsbDevice usbDevice = event.getUsbDevice();
-        byte deviceClass = usbDevice.getUsbDeviceDescriptor().bDeviceClass();
+        final UsbDevice usbDevice = event.getUsbDevice();
+        final DeviceRegistrations deviceRegistrations = new DeviceRegistrations();
+        DeviceRegistrations previous = (DeviceRegistrations) registrations.put(usbDevice, deviceRegistrations);
+        if (previous != null) {
+            // Attached twice without a detach; drop the stale registrations.
+            previous.unregister();
+        }
+        executor.execute(usbDevice, new Runnable() {
+
+            public void run() {
+                enumerate(usbDevice, deviceRegistrations);
+            }
+        });
+    }
+
+    private void enumerate(UsbDevice usbDevice, final DeviceRegistrations deviceRegistrations) {
+        if (deviceRegistrations.isDetached()) {
+            return;
+        }
+        final UsbDeviceInfo info = descriptorCache.get(usbDevice);
+        final String serial = getDeviceSerial(usbDevice);
+        byte deviceClass = info.getDeviceDescriptor().bDeviceClass();
         if (deviceClass == 0x00) {
             // Class defined at interface level
             List interfaceList = usbDevice.getActiveUsbConfiguration().getUsbInterfaces();
+            UsbInterfaceDescriptor[] descs = info.getInterfaceDescriptors();
             for (int i = 0; i < interfaceList.size(); i++) {
-                UsbInterface usbInterface = (UsbInterface) interfaceList.get(i);
-                UsbInterfaceDescriptor desc = usbInterface.getUsbInterfaceDescriptor();
-                int classCode = desc.bInterfaceClass();
-                registerDevice(usbDevice, usbInterface, classCode);
+                final UsbInterface usbInterface = (UsbInterface) interfaceList.get(i);
+                final int classCode = descs[i].bInterfaceClass();
+                executor.execute(usbInterface, new Runnable() {
+
+                    public void run() {
+                        register(deviceRegistrations, info, serial, usbInterface, classCode);
+                    }
+                });
             }
         } else {
-            registerDevice(usbDevice, usbDevice, deviceClass);
+            register(deviceRegistrations, info, serial, usbDevice, deviceClass);
+        }
+    }
+
+    private void register(DeviceRegistrations deviceRegistrations, UsbDeviceInfo info, String serial, Object device, int classCode) {
+        if (deviceRegistrations.isDetached()) {
+            return;
+        }
+        ServiceRegistration registration = registerDevice(info, serial, device, classCode);
+        if (!deviceRegistrations.add(registration)) {
+            // Detached while registering
+            unregister(registration);
         }
     }
 
     public void usbDeviceDetached(UsbServicesEvent event) {
-        UsbDevice detachedDevice = event.getUsbDevice();
+        final UsbDevice usbDevice = event.getUsbDevice();
+        DeviceRegistrations deviceRegistrations = (DeviceRegistrations) registrations.remove(usbDevice);
+        if (deviceRegistrations != null) {
+            deviceRegistrations.unregister();
+        }
+        // After the attach task, which fills the cache.
+        executor.execute(usbDevice, new Runnable() {
+
+            public void run() {
+                descriptorCache.remove(usbDevice);
+            }
+        });
+    }
+
+    /**
+     * Unregisters every device still registered and releases the HubOsDriver.
+     */
+    public void close() {
+        executor.close();
+        Enumeration e = registrations.elements();
+        while (e.hasMoreElements()) {
+            ((DeviceRegistrations) e.nextElement()).unregister();
+        }
+        registrations.clear();
+        descriptorCache.clear();
+        synchronized (this) {
+            if (osDriverRef != null) {
+                try {
+                    bc.ungetService(osDriverRef);
+                } catch (IllegalStateException ex) {
+                }
+                osDriverRef = null;
+                osDriver = null;
+            }
+        }
+    }
+
+    private static void unregister(ServiceRegistration registration) {
         try {
-            ServiceReference[] refs = bc.getServiceReferences(
-                    UsbDevice.class.getName(),
-                    "(&(" + org.osgi.service.device.Constants.DEVICE_SERIAL + "=" +
-                    getDeviceSerial(detachedDevice) + ")(" +
-                    DEVICE_VID_PID + "=" + getDeviceID(detachedDevice) + "))"
-                    );
-            if (refs != null && refs.length > 0) {
-                bc.ungetService(refs[0]);
+            registration.unregister();
+        } catch (IllegalStateException ex) {
+            // Already unregistered
+        }
+    }
+
+    /**
+     * Registrations of one device, filled by enumeration tasks.
+     */
+    private static class DeviceRegistrations {
+
+        private Vector registrations = new Vector();
+        private boolean detached;
+
+        synchronized boolean isDetached() {
+            return detached;
+        }
+
+        /**
+         * @return false if the device is already detached
+         */
+        synchronized boolean add(ServiceRegistration registration) {
+            if (detached) {
+                return false;
+            }
+            registrations.add(registration);
+            return true;
+        }
+
+        void unregister() {
+            Vector registered;
+            synchronized (this) {
+                detached = true;
+                registered = registrations;
+                registrations = new Vector();
+            }
+            for (int i = 0; i < registered.size(); i++) {
+                UsbDeviceManager.unregister((ServiceRegistration) registered.get(i));
             }
-        } catch (Exception ex) {
-            ex.printStackTrace();
         }
     }
 }
@@ -15,24 +15,44 @@
  */
 package org.squilla.usb.hub;
 
+import java.util.Hashtable;
 import java.util.List;
+import java.util.Vector;
 import javax.usb.UsbConst;
 import javax.usb.UsbDevice;
 import javax.usb.UsbEndpoint;
 import javax.usb.UsbException;
 import javax.usb.UsbInterface;
+import javax.usb.UsbIrp;
 import javax.usb.UsbPipe;
+import javax.usb.event.UsbDeviceDataEvent;
+import javax.usb.event.UsbDeviceErrorEvent;
+import javax.usb.event.UsbDeviceEvent;
+import javax.usb.event.UsbDeviceListener;
+import javax.usb.event.UsbPipeDataEvent;
+import javax.usb.event.UsbPipeErrorEvent;
+import javax.usb.event.UsbPipeListener;
 import net.sf.microlog.core.Logger;
 import net.sf.microlog.core.LoggerFactory;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 import org.squilla.usb.UsbDeviceDriver;
+import org.squilla.usb.UsbDeviceInfo;
 
 /**
+ * Driver of USB hubs.
+ * Every attached hub has its own interrupt pipe, status transfers, event
+ * queue and dispatch thread, which are released when the hub is detached.
+ * The interrupt pipe always has status change transfers queued with asyncSubmit,
+ * and each completed transfer is resubmitted before its changes are handed to
+ * the dispatch thread, which calls the {@link HubOsDriver}. A slow HubOsDriver
+ * therefore never delays the next transfer, and repeated changes of a port
+ * waiting for dispatch are merged.
  *
  * @author Shotaro Uchida <fantom@xmaker.mx>
  */
-public class HubDriver extends UsbDeviceDriver implements Runnable {
+public class HubDriver extends UsbDeviceDriver {
 
     public static final short HC_LPSM_MASK = 0x03;
     public static final short HC_LPSM_GANGED = 0x00;
@@ -44,24 +64,15 @@ public class HubDriver extends UsbDeviceDriver implements Runnable {
     public static final short HC_PIS_MASK = 0x80;
     
     private static final int BUFFER_SIZE = 64;
+    private static final int STATUS_IRPS = 2;
+    private static final int MAX_ERRORS = 8;
 
-    private UsbDevice usbDevice;
-    private UsbInterface usbInterface;
-    private byte[] readBuffer;
-    private byte[] statusBuffer;
-    private HubRequest hubRequest;
-    private UsbHubDescriptor hubDescriptor;
-    private UsbEndpoint intIn;
-    private UsbPipe intInPipe;
-    private HubOsDriver osDriver;
-    private boolean portIndicatorSupported = false;
-    private boolean individualPowerSupported = false;
-    private Thread processThread;
+    private Hashtable attachments;
     private Logger logger = LoggerFactory.getLogger(HubDriver.class);
 
     public HubDriver(BundleContext bc) {
         super(bc);
-        readBuffer = new byte[BUFFER_SIZE];
+        attachments = new Hashtable();
     }
     
     public int getClassCode() {
@@ -69,113 +80,408 @@ public class HubDriver extends UsbDeviceDriver implements Runnable {
     }
 
     public boolean attach(UsbDevice usbDevice, UsbInterface usbInterface) throws UsbException {
-        this.usbDevice = usbDevice;
-        this.usbInterface = usbInterface;
-        
+        if (attachments.containsKey(usbInterface)) {
+            logger.warn("[Hub] Interface is already attached");
+            return false;
+        }
         ServiceReference ref = getBundleContext().getServiceReference(HubOsDriver.class.getName());
         if (ref == null) {
             logger.error("No HubOsDriver Service!");
             return false;
         }
-        osDriver = (HubOsDriver) getBundleContext().getService(ref);
-        
-        hubRequest = new HubRequest(usbDevice);
-        hubRequest.getHubDescriptor(readBuffer);
-        hubDescriptor = HubRequest.parseUsbHubDescriptor(readBuffer);
-        statusBuffer = new byte[hubDescriptor.portPwrCtrlMask().length];
+        HubOsDriver osDriver = (HubOsDriver) getBundleContext().getService(ref);
+        if (osDriver == null) {
+            logger.error("No HubOsDriver Service!");
+            return false;
+        }
+
+        Attachment hub = new Attachment(usbDevice, usbInterface, ref, osDriver);
+        boolean attached = false;
+        try {
+            attached = hub.attach();
+        } finally {
+            if (!attached) {
+                hub.close();
+            }
+        }
+        if (attached) {
+            attachments.put(usbInterface, hub);
+            usbDevice.addUsbDeviceListener(hub);
+        }
+        return attached;
+    }
+
+    /**
+     * Stops polling the hub and releases its interface.
+     */
+    public void detach(UsbInterface usbInterface) {
+        Attachment hub = (Attachment) attachments.remove(usbInterface);
+        if (hub == null) {
+            return;
+        }
+        hub.usbDevice.removeUsbDeviceListener(hub);
+        hub.close();
+        logger.debug("[Hub] Detached");
+    }
 
-        logger.debug("[Hub] Number of Ports: " + hubDescriptor.bNbrPorts());
-        logger.trace("[Hub] Buffer Size: " + statusBuffer.length);
+    public int getAttachedCount() {
+        return attachments.size();
+    }
 
-        osDriver.attach(usbDevice, hubDescriptor.bNbrPorts());
+    public void close() {
+        Object[] usbInterfaces = attachments.keySet().toArray();
+        for (int i = 0; i < usbInterfaces.length; i++) {
+            detach((UsbInterface) usbInterfaces[i]);
+        }
+    }
 
-        List epList = usbInterface.getUsbEndpoints();
-        for (int index = 0; index < epList.size(); index++) {
-            UsbEndpoint ep = (UsbEndpoint) epList.get(index);
-            if (ep.getType() == UsbConst.ENDPOINT_TYPE_INTERRUPT) {
-                if (ep.getDirection() == UsbConst.ENDPOINT_DIRECTION_IN) {
-                    intIn = ep;
+    /**
+     * Decodes a status change bitmap, where bit 0 is the hub and bit n is port n.
+     * @param changed receives the changed port numbers, at least maxPort + 1 long
+     * @return the number of port numbers stored into changed
+     */
+    public static int decodeChangeBitmap(byte[] bitmap, int length, int maxPort, int[] changed) {
+        int count = 0;
+        for (int index = 0; index < length; index++) {
+            int bits = bitmap[index] & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                int port = (index * 8) + bit;
+                if (port > maxPort) {
+                    return count;
+                }
+                if ((bits & (1 << bit)) != 0) {
+                    changed[count++] = port;
                 }
             }
         }
-        
-        if (intIn == null) {
-            return false;
+        return count;
+    }
+
+    /**
+     * State of one attached hub.
+     */
+    private class Attachment implements UsbDeviceListener, UsbPipeListener, Runnable {
+
+        private UsbDevice usbDevice;
+        private UsbInterface usbInterface;
+        private ServiceReference osDriverRef;
+        private HubOsDriver osDriver;
+        private HubRequest hubRequest;
+        private UsbHubDescriptor hubDescriptor;
+        private PortStatus[] portStatus;
+        private boolean portIndicatorSupported = false;
+        private boolean individualPowerSupported = false;
+        private UsbPipe intInPipe;
+        private UsbIrp[] statusIrps;
+        private int statusLength;
+        private Thread processThread;
+        private HubMetrics metrics;
+        private ServiceRegistration metricsRegistration;
+        private int[] changedPorts;
+        private int[] dispatchPorts;
+        private HubEventQueue events;
+        private int errorCount;
+        private boolean claimed;
+        private boolean closed;
+
+        private Attachment(UsbDevice usbDevice, UsbInterface usbInterface, ServiceReference osDriverRef, HubOsDriver osDriver) {
+            this.usbDevice = usbDevice;
+            this.usbInterface = usbInterface;
+            this.osDriverRef = osDriverRef;
+            this.osDriver = osDriver;
         }
 
-        usbInterface.claim();
-        intInPipe = intIn.getUsbPipe();
-        intInPipe.open();
+        private boolean attach() throws UsbException {
+            hubRequest = new HubRequest(usbDevice);
+            UsbDeviceInfo info = getDeviceInfo(usbDevice);
+            hubDescriptor = info.getHubDescriptor();
+            if (hubDescriptor == null) {
+                byte[] readBuffer = new byte[BUFFER_SIZE];
+                hubRequest.getHubDescriptor(readBuffer);
+                hubDescriptor = HubRequest.parseUsbHubDescriptor(readBuffer);
+                info.setHubDescriptor(hubDescriptor);
+            }
+            statusLength = hubDescriptor.portPwrCtrlMask().length;
 
-        short hc = hubDescriptor.wHubCharacteristics();
+            if (logger.isDebugEnabled()) {
+                logger.debug("[Hub] Number of Ports: " + hubDescriptor.bNbrPorts());
+            }
+            if (logger.isTraceEnabled()) {
+                logger.trace("[Hub] Buffer Size: " + statusLength);
+            }
 
-        portIndicatorSupported = (hc & HC_PIS_MASK) > 0;
-        individualPowerSupported = ((hc & HC_LPSM_MASK) == HC_LPSM_INDIVIDUAL);
+            osDriver.attach(usbDevice, hubDescriptor.bNbrPorts());
 
-        logger.trace("[Hub] Port Indicator Supported: " + portIndicatorSupported);
-        logger.trace("[Hub] Individual Power Switching: " + individualPowerSupported);
+            UsbEndpoint intIn = null;
+            List epList = usbInterface.getUsbEndpoints();
+            for (int index = 0; index < epList.size(); index++) {
+                UsbEndpoint ep = (UsbEndpoint) epList.get(index);
+                if (ep.getType() == UsbConst.ENDPOINT_TYPE_INTERRUPT) {
+                    if (ep.getDirection() == UsbConst.ENDPOINT_DIRECTION_IN) {
+                        intIn = ep;
+                    }
+                }
+            }
 
-        for (byte port = 1; port <= hubDescriptor.bNbrPorts(); port++) {
-            hubRequest.clearPortFeature(HubRequest.FEATURE_SELECTOR_C_PORT_CONNECTION, (byte) 0, port);
-            // Even if HubDriver support ganged power switching, we should set feature to all ports.
-//            if (individualPowerSupported || port == 1) {
-//                hubRequest.setPortFeature(HubRequest.FEATURE_SELECTOR_PORT_POWER, (byte) 0, port);
-//            }
-            hubRequest.setPortFeature(HubRequest.FEATURE_SELECTOR_PORT_POWER, (byte) 0, port);
-            if (portIndicatorSupported) {
-                hubRequest.setPortFeature(HubRequest.FEATURE_SELECTOR_PORT_INDICATOR, (byte) 0, port);
+            if (intIn == null) {
+                return false;
             }
-            int status = hubRequest.getPortStatus(port)[HubRequest.PORT_STATUS_BITS];
-            if ((status & HubRequest.PS_PORT_POWER) > 0) {
-                logger.trace("[Hub] Port " + port + " Power Good");
-            } else {
-                logger.trace("[Hub] Port " + port + " Power Bad");
+
+            usbInterface.claim();
+            claimed = true;
+            intInPipe = intIn.getUsbPipe();
+            intInPipe.open();
+
+            short hc = hubDescriptor.wHubCharacteristics();
+
+            portIndicatorSupported = (hc & HC_PIS_MASK) > 0;
+            individualPowerSupported = ((hc & HC_LPSM_MASK) == HC_LPSM_INDIVIDUAL);
+
+            if (logger.isTraceEnabled()) {
+                logger.trace("[Hub] Port Indicator Supported: " + portIndicatorSupported);
+                logger.trace("[Hub] Individual Power Switching: " + individualPowerSupported);
             }
+
+            powerOnPorts();
+
+            metrics = new HubMetrics(hubDescriptor.bNbrPorts());
+            changedPorts = new int[hubDescriptor.bNbrPorts() + 1];
+            dispatchPorts = new int[hubDescriptor.bNbrPorts() + 1];
+            events = new HubEventQueue(hubDescriptor.bNbrPorts());
+            metricsRegistration = getBundleContext().registerService(HubMetrics.class.getName(), metrics,
+                    getDeviceProperties(usbDevice, usbInterface));
+
+            activate();
+
+            return true;
         }
 
-        activate();
-        
-        return true;
-    }
+        /**
+         * Powers every port in one batch, waits a single power-on to power-good
+         * interval for all of them and reads every port status in a second batch,
+         * so the bring-up time does not grow with the number of ports.
+         */
+        private void powerOnPorts() throws UsbException {
+            List irps = new Vector();
+            for (byte port = 1; port <= hubDescriptor.bNbrPorts(); port++) {
+                irps.add(hubRequest.createClearPortFeature(HubRequest.FEATURE_SELECTOR_C_PORT_CONNECTION, (byte) 0, port));
+                // Even if HubDriver support ganged power switching, we should set feature to all ports.
+                irps.add(hubRequest.createSetPortFeature(HubRequest.FEATURE_SELECTOR_PORT_POWER, (byte) 0, port));
+                if (portIndicatorSupported) {
+                    irps.add(hubRequest.createSetPortFeature(HubRequest.FEATURE_SELECTOR_PORT_INDICATOR, (byte) 0, port));
+                }
+            }
+            hubRequest.syncSubmit(irps);
 
-    private void activate() {
-        if (processThread != null) {
-            return;
+            // bPwrOn2PwrGood is in 2 ms units.
+            long powerGood = (hubDescriptor.bPwrOn2PwrGood() & 0xFF) * 2;
+            if (logger.isTraceEnabled()) {
+                logger.trace("[Hub] Power On to Power Good: " + powerGood + "ms");
+            }
+            if (powerGood > 0) {
+                try {
+                    Thread.sleep(powerGood);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            portStatus = new PortStatus[hubDescriptor.bNbrPorts()];
+            for (int i = 0; i < portStatus.length; i++) {
+                portStatus[i] = new PortStatus(i + 1);
+            }
+            hubRequest.getPortStatus(portStatus);
+            if (logger.isTraceEnabled()) {
+                for (int i = 0; i < portStatus.length; i++) {
+                    if (portStatus[i].isPowered()) {
+                        logger.trace("[Hub] Port " + portStatus[i].getPort() + " Power Good");
+                    } else {
+                        logger.trace("[Hub] Port " + portStatus[i].getPort() + " Power Bad");
+                    }
+                }
+            }
         }
-        
-        processThread = new Thread(this, HubDriver.class.getName());
-        processThread.start();
-    }
 
-    public void run() {
-        while (true) {
+        private void activate() throws UsbException {
+            processThread = new Thread(this, HubDriver.class.getName());
+            processThread.setDaemon(true);
+            processThread.start();
+
+            intInPipe.addUsbPipeListener(this);
+            statusIrps = new UsbIrp[STATUS_IRPS];
+            for (int i = 0; i < statusIrps.length; i++) {
+                statusIrps[i] = intInPipe.createUsbIrp();
+                statusIrps[i].setData(new byte[statusLength]);
+                submitStatus(statusIrps[i]);
+            }
+        }
+
+        /**
+         * Stops the dispatch thread, aborts the status transfers and
+         * releases the interface. Safe to call more than once.
+         */
+        private void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            if (metricsRegistration != null) {
+                try {
+                    metricsRegistration.unregister();
+                } catch (IllegalStateException ex) {
+                    // Already unregistered
+                }
+            }
+            if (events != null) {
+                // Ends the dispatch thread.
+                events.close();
+            }
+            try {
+                if (intInPipe != null && intInPipe.isOpen()) {
+                    intInPipe.removeUsbPipeListener(this);
+                    intInPipe.abortAllSubmissions();
+                    intInPipe.close();
+                }
+                if (claimed) {
+                    usbInterface.release();
+                }
+            } catch (Exception ex) {
+                // Device may already be gone.
+                logger.trace(ex);
+            }
             try {
-                if (intInPipe.syncSubmit(statusBuffer) > 0) {
-                    int maxPort = hubDescriptor.bNbrPorts();
-                    OUTER:
-                    for (int index = 0; index < statusBuffer.length; index++) {
-                        byte bitmap = statusBuffer[index];
-                        byte mask = 0x01;
-                        for (int port = 0; port < 8; port++) {
-                            int actualPort = (index * 8) + port;
-                            if (actualPort <= maxPort) {
-                                if ((bitmap & mask) > 0) {
-                                    if (actualPort == 0) {
-                                        osDriver.hubStatusChanged();
-                                    } else {
-                                        osDriver.portStatusChanged(actualPort);
-                                    }
-                                }
-                                mask <<= 1;
-                            } else {
-                                break OUTER;
-                            }
+                getBundleContext().ungetService(osDriverRef);
+            } catch (IllegalStateException ex) {
+                // Bundle is stopping
+            }
+        }
+
+        private synchronized boolean isClosed() {
+            return closed;
+        }
+
+        private void submitStatus(UsbIrp irp) throws UsbException {
+            irp.setActualLength(0);
+            irp.setUsbException(null);
+            irp.setComplete(false);
+            intInPipe.asyncSubmit(irp);
+        }
+
+        private boolean isStatusIrp(UsbIrp irp) {
+            for (int i = 0; i < statusIrps.length; i++) {
+                if (statusIrps[i] == irp) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Queues the first count ports of changedPorts for dispatch.
+         * Called on the pipe's event thread with changedPorts locked.
+         */
+        private void postChanges(int count) {
+            for (int i = 0; i < count; i++) {
+                int port = changedPorts[i];
+                metrics.statusChanged(port);
+                if (!events.post(port)) {
+                    metrics.eventCoalesced();
+                }
+            }
+        }
+
+        /**
+         * Dispatches queued status changes to the HubOsDriver.
+         */
+        public void run() {
+            while (true) {
+                int count;
+                try {
+                    count = events.take(dispatchPorts);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                if (count < 0) {
+                    break;
+                }
+                for (int i = 0; i < count; i++) {
+                    int port = dispatchPorts[i];
+                    try {
+                        if (port == 0) {
+                            osDriver.hubStatusChanged();
+                        } else {
+                            osDriver.portStatusChanged(port);
                         }
+                    } catch (RuntimeException ex) {
+                        logger.warn(ex);
                     }
                 }
+            }
+            // Releases the hub if polling stopped on errors.
+            if (attachments.get(usbInterface) == this) {
+                detach(usbInterface);
+            }
+        }
+
+        public void dataEventOccurred(UsbPipeDataEvent event) {
+            UsbIrp irp = event.getUsbIrp();
+            if (irp == null || !isStatusIrp(irp) || isClosed()) {
+                return;
+            }
+            synchronized (this) {
+                errorCount = 0;
+            }
+            // The other transfer stays queued while this one is decoded.
+            synchronized (changedPorts) {
+                int count = 0;
+                if (irp.getActualLength() > 0) {
+                    metrics.interruptReceived();
+                    count = decodeChangeBitmap(irp.getData(), irp.getActualLength(),
+                            hubDescriptor.bNbrPorts(), changedPorts);
+                }
+                // The data is decoded, so the transfer can go back first.
+                try {
+                    submitStatus(irp);
+                } catch (UsbException ex) {
+                    metrics.errorOccurred();
+                    logger.warn(ex);
+                }
+                postChanges(count);
+            }
+        }
+
+        public void errorEventOccurred(UsbPipeErrorEvent event) {
+            UsbIrp irp = event.getUsbIrp();
+            if (irp == null || !isStatusIrp(irp) || isClosed()) {
+                return;
+            }
+            metrics.errorOccurred();
+            logger.warn(event.getUsbException());
+            synchronized (this) {
+                if (++errorCount > MAX_ERRORS) {
+                    logger.error("[Hub] Too many errors on the interrupt pipe, stopped polling");
+                    // The dispatch thread detaches this hub once the queue is closed.
+                    events.close();
+                    return;
+                }
+            }
+            try {
+                submitStatus(irp);
             } catch (UsbException ex) {
                 logger.warn(ex);
             }
         }
+
+        public void usbDeviceDetached(UsbDeviceEvent event) {
+            detach(usbInterface);
+        }
+
+        public void errorEventOccurred(UsbDeviceErrorEvent event) {
+        }
+
+        public void dataEventOccurred(UsbDeviceDataEvent event) {
+        }
     }
 }
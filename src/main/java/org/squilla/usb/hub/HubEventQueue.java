@@ -0,0 +1,88 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.hub;
+
+/**
+ * Status change events of one hub waiting for dispatch.
+ * A port that changes again before it is dispatched is queued only once,
+ * and ports are dispatched in the order they first changed.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class HubEventQueue {
+
+    private boolean[] pending;
+    private int[] order;
+    private int head;
+    private int count;
+    private boolean closed;
+
+    /**
+     * @param numberOfPorts the number of downstream ports
+     */
+    public HubEventQueue(int numberOfPorts) {
+        // Index 0 is the hub itself.
+        pending = new boolean[numberOfPorts + 1];
+        order = new int[numberOfPorts + 1];
+    }
+
+    /**
+     * @param port the port number, or 0 for the hub
+     * @return false if the port was already waiting, so the event was merged
+     */
+    public synchronized boolean post(int port) {
+        if (pending[port]) {
+            return false;
+        }
+        pending[port] = true;
+        order[(head + count) % order.length] = port;
+        count++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Waits for at least one event and moves every waiting port into ports.
+     * @param ports receives the port numbers, at least numberOfPorts + 1 long
+     * @return the number of ports stored, or -1 once closed
+     */
+    public synchronized int take(int[] ports) throws InterruptedException {
+        while (count == 0 && !closed) {
+            wait();
+        }
+        if (closed) {
+            return -1;
+        }
+        int taken = count;
+        for (int i = 0; i < taken; i++) {
+            int port = order[head];
+            head = (head + 1) % order.length;
+            pending[port] = false;
+            ports[i] = port;
+        }
+        count = 0;
+        return taken;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.hub;
+
+/**
+ * Counters of status change events reported by one hub, registered as a
+ * service when the hub is attached.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class HubMetrics {
+
+    private long[] changeCounts;
+    private long interruptCount;
+    private long errorCount;
+    private long coalescedCount;
+    private long lastChangeTime;
+    private long startTime;
+
+    /**
+     * @param numberOfPorts the number of downstream ports
+     */
+    public HubMetrics(int numberOfPorts) {
+        // Index 0 is the hub itself.
+        changeCounts = new long[numberOfPorts + 1];
+        startTime = System.currentTimeMillis();
+    }
+
+    synchronized void interruptReceived() {
+        interruptCount++;
+    }
+
+    synchronized void statusChanged(int port) {
+        changeCounts[port]++;
+        lastChangeTime = System.currentTimeMillis();
+    }
+
+    synchronized void eventCoalesced() {
+        coalescedCount++;
+    }
+
+    synchronized void errorOccurred() {
+        errorCount++;
+    }
+
+    public int getNumberOfPorts() {
+        return changeCounts.length - 1;
+    }
+
+    /**
+     * @param port the port number, or 0 for the hub
+     */
+    public synchronized long getChangeCount(int port) {
+        return changeCounts[port];
+    }
+
+    /**
+     * @return change events of the hub and all ports
+     */
+    public synchronized long getChangeCount() {
+        long total = 0;
+        for (int i = 0; i < changeCounts.length; i++) {
+            total += changeCounts[i];
+        }
+        return total;
+    }
+
+    /**
+     * @return status change interrupts received on the interrupt pipe
+     */
+    public synchronized long getInterruptCount() {
+        return interruptCount;
+    }
+
+    /**
+     * @return change events merged into one still waiting for dispatch
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    public synchronized long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * @return change events per minute since the counters were started
+     */
+    public synchronized double getChangeRate() {
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return getChangeCount() * 60000.0 / elapsed;
+    }
+
+    public synchronized long getLastChangeTime() {
+        return lastChangeTime;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < changeCounts.length; i++) {
+            changeCounts[i] = 0;
+        }
+        interruptCount = 0;
+        errorCount = 0;
+        coalescedCount = 0;
+        lastChangeTime = 0;
+        startTime = System.currentTimeMillis();
+    }
+
+    public synchronized String toString() {
+        return "changes=" + getChangeCount() + " interrupts=" + interruptCount
+                + " coalesced=" + coalescedCount + " errors=" + errorCount + " rate=" + getChangeRate() + "/min";
+    }
+}
@@ -15,15 +15,19 @@
  */
 package org.squilla.usb.hub;
 
+import java.util.List;
+import java.util.Vector;
 import javax.usb.UsbConst;
 import javax.usb.UsbControlIrp;
 import javax.usb.UsbDevice;
 import javax.usb.UsbEndpoint;
 import javax.usb.UsbException;
 import javax.usb.util.UsbUtil;
-import org.squilla.io.ByteUtil;
 
 /**
+ * Hub class requests.
+ * The create methods build requests without submitting them,
+ * so that several can be sent at once with {@link #syncSubmit(List)}.
  *
  * @author Shotaro Uchida <fantom@xmaker.mx>
  */
@@ -84,13 +88,25 @@ public class HubRequest {
     }
 
     protected void clearFeature(byte recipient, short featureSelector, short wIndex) throws UsbException {
+        usbDevice.syncSubmit(createFeatureIrp(REQUEST_CLEAR_FEATURE, recipient, featureSelector, wIndex));
+    }
+
+    public UsbControlIrp createClearPortFeature(short featureSelector, byte selector, byte port) {
+        short wIndex = (short) ((selector << 8) | port);
+        return createFeatureIrp(REQUEST_CLEAR_FEATURE, UsbConst.REQUESTTYPE_RECIPIENT_OTHER, featureSelector, wIndex);
+    }
+
+    public UsbControlIrp createSetPortFeature(short featureSelector, byte selector, byte port) {
+        short wIndex = (short) ((selector << 8) | port);
+        return createFeatureIrp(REQUEST_SET_FEATURE, UsbConst.REQUESTTYPE_RECIPIENT_OTHER, featureSelector, wIndex);
+    }
+
+    private UsbControlIrp createFeatureIrp(byte request, byte recipient, short featureSelector, short wIndex) {
         byte bmRequestType =
                 UsbConst.REQUESTTYPE_TYPE_CLASS |
                 UsbConst.REQUESTTYPE_DIRECTION_OUT;
         bmRequestType |= recipient;
-        UsbControlIrp controlIrp = usbDevice.createUsbControlIrp(bmRequestType, REQUEST_CLEAR_FEATURE, featureSelector, wIndex);
-
-        usbDevice.syncSubmit(controlIrp);
+        return usbDevice.createUsbControlIrp(bmRequestType, request, featureSelector, wIndex);
     }
 
     public void clearTTBuffer(int deviceAddress, UsbEndpoint endpoint, short ttIndex) throws UsbException {
@@ -127,25 +143,67 @@ public class HubRequest {
     }
 
     public int[] getHubStatus() throws UsbException {
-        return getStatus(UsbConst.REQUESTTYPE_RECIPIENT_DEVICE, (short) 0);
+        PortStatus status = new PortStatus(0);
+        getHubStatus(status);
+        return new int[] {status.getStatus(), status.getChange()};
     }
 
     public int[] getPortStatus(short port) throws UsbException {
-        return getStatus(UsbConst.REQUESTTYPE_RECIPIENT_OTHER, port);
+        PortStatus status = new PortStatus(port);
+        getPortStatus(status);
+        return new int[] {status.getStatus(), status.getChange()};
+    }
+
+    /**
+     * Reads the hub status into status, whose port must be 0.
+     */
+    public void getHubStatus(PortStatus status) throws UsbException {
+        usbDevice.syncSubmit(createGetStatus(status));
+    }
+
+    /**
+     * Reads the status of status.getPort() into status.
+     */
+    public void getPortStatus(PortStatus status) throws UsbException {
+        usbDevice.syncSubmit(createGetStatus(status));
+    }
+
+    /**
+     * Reads the status of every port in statuses with a single submission.
+     */
+    public void getPortStatus(PortStatus[] statuses) throws UsbException {
+        List irps = new Vector(statuses.length);
+        for (int i = 0; i < statuses.length; i++) {
+            irps.add(createGetStatus(statuses[i]));
+        }
+        syncSubmit(irps);
     }
 
-    protected int[] getStatus(byte recipient, short wIndex) throws UsbException {
+    /**
+     * Creates a GET_STATUS request that reads into status when submitted.
+     */
+    public UsbControlIrp createGetStatus(PortStatus status) {
         byte bmRequestType =
                 UsbConst.REQUESTTYPE_TYPE_CLASS |
                 UsbConst.REQUESTTYPE_DIRECTION_IN;
-        bmRequestType |= recipient;
-        UsbControlIrp controlIrp = usbDevice.createUsbControlIrp(bmRequestType, REQUEST_GET_STATUS, (short) 0, wIndex);
-        byte[] data = new byte[ByteUtil.INT_16_SIZE * 2];
-        controlIrp.setData(data);
-
-        usbDevice.syncSubmit(controlIrp);
+        if (status.getPort() == 0) {
+            bmRequestType |= UsbConst.REQUESTTYPE_RECIPIENT_DEVICE;
+        } else {
+            bmRequestType |= UsbConst.REQUESTTYPE_RECIPIENT_OTHER;
+        }
+        UsbControlIrp controlIrp = usbDevice.createUsbControlIrp(bmRequestType, REQUEST_GET_STATUS, (short) 0, status.getPort());
+        controlIrp.setData(status.getData());
+        return controlIrp;
+    }
 
-        return ByteUtil.LITTLE_ENDIAN.toInt32Array(data, 0, ByteUtil.INT_16_SIZE, 2);
+    /**
+     * Submits the control requests in order, letting the implementation
+     * queue them together instead of waiting for each one.
+     */
+    public void syncSubmit(List irps) throws UsbException {
+        if (!irps.isEmpty()) {
+            usbDevice.syncSubmit(irps);
+        }
     }
 
     public int getTTState(short ttFlags, short ttPort, byte[] data) throws UsbException {
@@ -203,13 +261,7 @@ public class HubRequest {
     }
 
     protected void setFeature(byte recipient, short featureSelector, short wIndex) throws UsbException {
-        byte bmRequestType =
-                UsbConst.REQUESTTYPE_TYPE_CLASS |
-                UsbConst.REQUESTTYPE_DIRECTION_OUT;
-        bmRequestType |= recipient;
-        UsbControlIrp controlIrp = usbDevice.createUsbControlIrp(bmRequestType, REQUEST_SET_FEATURE, featureSelector, wIndex);
-
-        usbDevice.syncSubmit(controlIrp);
+        usbDevice.syncSubmit(createFeatureIrp(REQUEST_SET_FEATURE, recipient, featureSelector, wIndex));
     }
     
     public static UsbHubDescriptor parseUsbHubDescriptor(byte[] buffer) {
@@ -219,14 +271,8 @@ public class HubRequest {
         short wHubCharacteristics = UsbUtil.toShort(buffer[4], buffer[3]);
         byte bPwrOn2PwrGood = buffer[5];
         byte bHubContrCurrent = buffer[6];
-        int l;
-        if (bNbrPorts < 8) {
-            l = 1;
-        } else {
-            int r = bNbrPorts % 8;
-            int q = (bNbrPorts - r) / 8;
-            l = r + q;
-        }
+        // One bit per port plus bit 0, rounded up to bytes.
+        int l = (bNbrPorts & 0xFF) / 8 + 1;
         byte[] deviceRemovable = new byte[l];
         System.arraycopy(buffer, 7, deviceRemovable, 0, l);
         byte[] portPwrCtrlMask = new byte[l];
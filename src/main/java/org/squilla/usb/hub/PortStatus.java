@@ -0,0 +1,70 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.hub;
+
+/**
+ * Reusable holder of a GET_STATUS result of a hub or one of its ports.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class PortStatus {
+
+    public static final int STATUS_SIZE = 4;
+    private short port;
+    private byte[] data;
+
+    /**
+     * @param port the port number, or 0 for the hub
+     */
+    public PortStatus(int port) {
+        this.port = (short) port;
+        data = new byte[STATUS_SIZE];
+    }
+
+    public short getPort() {
+        return port;
+    }
+
+    /**
+     * @return wPortStatus, or wHubStatus for the hub
+     */
+    public int getStatus() {
+        return (data[0] & 0xFF) | ((data[1] & 0xFF) << 8);
+    }
+
+    /**
+     * @return wPortChange, or wHubChange for the hub
+     */
+    public int getChange() {
+        return (data[2] & 0xFF) | ((data[3] & 0xFF) << 8);
+    }
+
+    public boolean isPowered() {
+        return (getStatus() & HubRequest.PS_PORT_POWER) != 0;
+    }
+
+    /**
+     * The buffer the status is read into.
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    public String toString() {
+        return "port=" + port + " status=0x" + Integer.toHexString(getStatus())
+                + " change=0x" + Integer.toHexString(getChange());
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+import java.nio.ByteBuffer;
+
+/**
+ * LRU cache of logical blocks keyed by LUN and LBA.
+ * All blocks live in one preallocated slab, so memory use is bounded by
+ * the configured size and lookups do not allocate.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class BlockCache {
+
+    private static final int NONE = -1;
+    private int size;
+    private int blockLength;
+    private int slots;
+    private byte[] slab;
+    private long[] keys;
+    private int[] buckets;
+    private int[] chain;
+    private int[] prev;
+    private int[] next;
+    private int head;
+    private int tail;
+    private int free;
+    private int resetCount;
+    private int generation;
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * @param size the cache size in bytes
+     */
+    public BlockCache(int size) {
+        this.size = size;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Allocates the slab for the block length on first call.
+     * @return false if the cache can not hold blocks of this length
+     */
+    public synchronized boolean init(int blockLength) {
+        if (slab != null) {
+            return this.blockLength == blockLength;
+        }
+        slots = size / blockLength;
+        if (slots == 0) {
+            return false;
+        }
+        this.blockLength = blockLength;
+        slab = new byte[slots * blockLength];
+        keys = new long[slots];
+        chain = new int[slots];
+        prev = new int[slots];
+        next = new int[slots];
+        int bucketCount = 1;
+        while (bucketCount < slots) {
+            bucketCount <<= 1;
+        }
+        buckets = new int[bucketCount];
+        clear();
+        return true;
+    }
+
+    /**
+     * Drops every block if the transport went through reset recovery since the last call.
+     */
+    public synchronized void validate(int resetCount) {
+        if (this.resetCount != resetCount) {
+            this.resetCount = resetCount;
+            clear();
+        }
+    }
+
+    /**
+     * Drops every block.
+     */
+    public synchronized void clear() {
+        generation++;
+        if (slab == null) {
+            return;
+        }
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = NONE;
+        }
+        for (int i = 0; i < slots; i++) {
+            next[i] = i + 1 < slots ? i + 1 : NONE;
+        }
+        free = 0;
+        head = NONE;
+        tail = NONE;
+    }
+
+    /**
+     * Copies part of a cached block into dst.
+     * @return false on cache miss
+     */
+    public synchronized boolean read(int lun, long lba, int skip, int length, ByteBuffer dst) {
+        int slot = find(key(lun, lba));
+        if (slot == NONE) {
+            missCount++;
+            return false;
+        }
+        hitCount++;
+        unlink(slot);
+        linkFirst(slot);
+        dst.put(slab, slot * blockLength + skip, length);
+        return true;
+    }
+
+    public synchronized boolean contains(int lun, long lba) {
+        return find(key(lun, lba)) != NONE;
+    }
+
+    /**
+     * @return the generation, advanced by every write and invalidation
+     */
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Stores blocks read from the device, unless the cache was written or
+     * invalidated after the generation was taken (the data may be stale).
+     */
+    public synchronized void fill(int generation, int lun, long lba, int blocks, byte[] src, int offset) {
+        if (this.generation == generation) {
+            put(lun, lba, blocks, src, offset);
+        }
+    }
+
+    /**
+     * Stores written blocks, replacing cached copies.
+     */
+    public synchronized void write(int lun, long lba, int blocks, byte[] src, int offset) {
+        generation++;
+        put(lun, lba, blocks, src, offset);
+    }
+
+    private void put(int lun, long lba, int blocks, byte[] src, int offset) {
+        for (int i = 0; i < blocks; i++) {
+            long key = key(lun, lba + i);
+            int slot = find(key);
+            if (slot == NONE) {
+                slot = allocate();
+                keys[slot] = key;
+                int bucket = bucket(key);
+                chain[slot] = buckets[bucket];
+                buckets[bucket] = slot;
+            } else {
+                unlink(slot);
+            }
+            linkFirst(slot);
+            System.arraycopy(src, offset + i * blockLength, slab, slot * blockLength, blockLength);
+        }
+    }
+
+    public synchronized void invalidate(int lun, long lba, int blocks) {
+        generation++;
+        for (int i = 0; i < blocks; i++) {
+            int slot = find(key(lun, lba + i));
+            if (slot != NONE) {
+                remove(slot);
+            }
+        }
+    }
+
+    private int allocate() {
+        if (free == NONE) {
+            remove(tail);
+        }
+        int slot = free;
+        free = next[slot];
+        return slot;
+    }
+
+    private void remove(int slot) {
+        int bucket = bucket(keys[slot]);
+        if (buckets[bucket] == slot) {
+            buckets[bucket] = chain[slot];
+        } else {
+            int s = buckets[bucket];
+            while (chain[s] != slot) {
+                s = chain[s];
+            }
+            chain[s] = chain[slot];
+        }
+        unlink(slot);
+        next[slot] = free;
+        free = slot;
+    }
+
+    private int find(long key) {
+        if (slab == null) {
+            return NONE;
+        }
+        int slot = buckets[bucket(key)];
+        while (slot != NONE && keys[slot] != key) {
+            slot = chain[slot];
+        }
+        return slot;
+    }
+
+    private void unlink(int slot) {
+        if (prev[slot] != NONE) {
+            next[prev[slot]] = next[slot];
+        } else {
+            head = next[slot];
+        }
+        if (next[slot] != NONE) {
+            prev[next[slot]] = prev[slot];
+        } else {
+            tail = prev[slot];
+        }
+    }
+
+    private void linkFirst(int slot) {
+        prev[slot] = NONE;
+        next[slot] = head;
+        if (head != NONE) {
+            prev[head] = slot;
+        }
+        head = slot;
+        if (tail == NONE) {
+            tail = slot;
+        }
+    }
+
+    private int bucket(long key) {
+        int h = (int) (key ^ (key >>> 32));
+        h ^= (h >>> 16);
+        h *= 0x85EBCA6B;
+        h ^= (h >>> 13);
+        return h & (buckets.length - 1);
+    }
+
+    private static long key(int lun, long lba) {
+        return ((long) (lun & 0xFF) << 56) | (lba & 0x00FFFFFFFFFFFFFFL);
+    }
+}
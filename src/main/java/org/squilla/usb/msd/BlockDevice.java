@@ -0,0 +1,59 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte addressed access to a logical unit.
+ * Requests of any offset and length are aligned and split by the implementation.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public interface BlockDevice {
+
+    public int getBlockLength() throws IOException;
+
+    public long getBlockCount() throws IOException;
+
+    /**
+     * @return the capacity in bytes
+     */
+    public long getSize() throws IOException;
+
+    /**
+     * Reads dst.remaining() bytes starting at the byte offset.
+     */
+    public void read(long offset, ByteBuffer dst) throws IOException;
+
+    /**
+     * Writes src.remaining() bytes starting at the byte offset.
+     * The data may be buffered until {@link #sync()} if the device caches writes.
+     */
+    public void write(long offset, ByteBuffer src) throws IOException;
+
+    /**
+     * Writes src.remaining() bytes starting at the byte offset,
+     * sending them to the device before returning.
+     */
+    public void writeThrough(long offset, ByteBuffer src) throws IOException;
+
+    /**
+     * Sends every buffered write to the device and flushes the device cache.
+     */
+    public void sync() throws IOException;
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.channels.spi.AbstractInterruptibleChannel;
+
+/**
+ * A channel over a {@link BlockDevice}.
+ * Reads and writes of any position and length are aligned to the block size
+ * and split into multi-block transfers by the device, so buffers with a
+ * backing array at block boundaries are filled without an intermediate copy.
+ * Positioning follows the SeekableByteChannel contract, which can not be
+ * declared while the bundle targets Java 1.4.
+ * A thread interrupted during I/O closes the channel and gets a
+ * ClosedByInterruptException once the command in flight completes.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class BlockDeviceChannel extends AbstractInterruptibleChannel
+        implements ByteChannel, ScatteringByteChannel, GatheringByteChannel {
+
+    private static final int TRANSFER_SIZE = 64 * 1024;
+    private BlockDevice device;
+    private boolean writable;
+    private Object positionLock = new Object();
+    private long position;
+
+    public BlockDeviceChannel(BlockDevice device) {
+        this(device, true);
+    }
+
+    public BlockDeviceChannel(BlockDevice device, boolean writable) {
+        this.device = device;
+        this.writable = writable;
+    }
+
+    public BlockDevice getBlockDevice() {
+        return device;
+    }
+
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (positionLock) {
+            int n = read(dst, position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+    }
+
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        checkBounds(dsts.length, offset, length);
+        synchronized (positionLock) {
+            ensureOpen();
+            long size = device.getSize();
+            if (position >= size) {
+                return -1;
+            }
+            long total = 0;
+            boolean completed = false;
+            try {
+                begin();
+                for (int i = offset; i < offset + length && position < size; i++) {
+                    int n = transfer(dsts[i], position, size, false);
+                    position += n;
+                    total += n;
+                }
+                completed = true;
+            } finally {
+                end(completed);
+            }
+            return total;
+        }
+    }
+
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: " + position);
+        }
+        ensureOpen();
+        long size = device.getSize();
+        if (position >= size) {
+            return -1;
+        }
+        boolean completed = false;
+        try {
+            begin();
+            int n = transfer(dst, position, size, false);
+            completed = true;
+            return n;
+        } finally {
+            end(completed);
+        }
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        synchronized (positionLock) {
+            int n = write(src, position);
+            position += n;
+            return n;
+        }
+    }
+
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        checkBounds(srcs.length, offset, length);
+        synchronized (positionLock) {
+            ensureWritable();
+            long size = device.getSize();
+            long total = 0;
+            boolean completed = false;
+            try {
+                begin();
+                for (int i = offset; i < offset + length; i++) {
+                    if (!srcs[i].hasRemaining()) {
+                        continue;
+                    }
+                    if (position >= size) {
+                        if (total == 0) {
+                            throw new IOException("No space left on device");
+                        }
+                        break;
+                    }
+                    int n = transfer(srcs[i], position, size, true);
+                    position += n;
+                    total += n;
+                }
+                completed = true;
+            } finally {
+                end(completed);
+            }
+            return total;
+        }
+    }
+
+    public int write(ByteBuffer src, long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: " + position);
+        }
+        ensureWritable();
+        if (!src.hasRemaining()) {
+            return 0;
+        }
+        long size = device.getSize();
+        if (position >= size) {
+            throw new IOException("No space left on device");
+        }
+        boolean completed = false;
+        try {
+            begin();
+            int n = transfer(src, position, size, true);
+            completed = true;
+            return n;
+        } finally {
+            end(completed);
+        }
+    }
+
+    public long position() throws IOException {
+        ensureOpen();
+        synchronized (positionLock) {
+            return position;
+        }
+    }
+
+    public BlockDeviceChannel position(long newPosition) throws IOException {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        ensureOpen();
+        synchronized (positionLock) {
+            position = newPosition;
+        }
+        return this;
+    }
+
+    public long size() throws IOException {
+        ensureOpen();
+        return device.getSize();
+    }
+
+    public BlockDeviceChannel truncate(long size) throws IOException {
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size: " + size);
+        }
+        ensureWritable();
+        if (size < device.getSize()) {
+            throw new IOException("Block device can not be truncated");
+        }
+        synchronized (positionLock) {
+            if (position > size) {
+                position = size;
+            }
+        }
+        return this;
+    }
+
+    public void force(boolean metaData) throws IOException {
+        ensureOpen();
+        if (!writable) {
+            return;
+        }
+        boolean completed = false;
+        try {
+            begin();
+            device.sync();
+            completed = true;
+        } finally {
+            end(completed);
+        }
+    }
+
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException();
+        }
+        ensureOpen();
+        long size = device.getSize();
+        if (position >= size) {
+            return 0;
+        }
+        count = Math.min(count, size - position);
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, TRANSFER_SIZE));
+        long total = 0;
+        boolean completed = false;
+        try {
+            begin();
+            while (total < count) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - total));
+                device.read(position + total, buffer);
+                buffer.flip();
+                int n = target.write(buffer);
+                total += n;
+                if (buffer.hasRemaining()) {
+                    // The target accepted less than offered, so stop here.
+                    break;
+                }
+            }
+            completed = true;
+        } finally {
+            end(completed);
+        }
+        return total;
+    }
+
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException();
+        }
+        ensureWritable();
+        long size = device.getSize();
+        if (position >= size) {
+            return 0;
+        }
+        count = Math.min(count, size - position);
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, TRANSFER_SIZE));
+        long total = 0;
+        boolean completed = false;
+        try {
+            begin();
+            while (total < count) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - total));
+                int n = src.read(buffer);
+                if (n <= 0) {
+                    break;
+                }
+                buffer.flip();
+                device.write(position + total, buffer);
+                total += n;
+            }
+            completed = true;
+        } finally {
+            end(completed);
+        }
+        return total;
+    }
+
+    protected void implCloseChannel() throws IOException {
+        // The device belongs to the driver and outlives the channel.
+    }
+
+    /**
+     * Moves as much of the buffer as fits before the end of the device
+     * and returns the number of bytes moved.
+     */
+    private int transfer(ByteBuffer buffer, long position, long size, boolean write) throws IOException {
+        int length = (int) Math.min(buffer.remaining(), size - position);
+        if (length <= 0) {
+            return 0;
+        }
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + length);
+        try {
+            if (write) {
+                device.write(position, buffer);
+            } else {
+                device.read(position, buffer);
+            }
+        } finally {
+            buffer.limit(limit);
+        }
+        return length;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private void ensureWritable() throws IOException {
+        ensureOpen();
+        if (!writable) {
+            throw new NonWritableChannelException();
+        }
+    }
+
+    private static void checkBounds(int arrayLength, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > arrayLength - length) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.spi.AbstractInterruptibleChannel;
+
+/**
+ * Sequential reader that keeps a ring of READ commands queued on the transport.
+ * While the consumer drains one buffer, the following ones are already being
+ * transferred, so the bus never waits for the consumer between commands.
+ * A reader is meant for a single consumer thread.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class BlockStreamReader extends AbstractInterruptibleChannel implements ReadableByteChannel {
+
+    private UsbBlockDevice device;
+    private UsbSCSI usbSCSI;
+    private int blockLength;
+    private int bufferBlocks;
+    private Slot[] ring;
+    private int head;
+    private boolean headTaken;
+    private long nextLBA;
+    private long endLBA;
+    private int skip;
+    private long remaining;
+
+    BlockStreamReader(UsbBlockDevice device, long offset, long length, int bufferSize, int depth) throws IOException {
+        this.device = device;
+        usbSCSI = device.getUsbSCSI();
+        blockLength = device.getBlockLength();
+        int limit = usbSCSI.isCommand16() ? Integer.MAX_VALUE : 0xFFFF;
+        bufferBlocks = Math.max(1, Math.min(limit, bufferSize / blockLength));
+        nextLBA = offset / blockLength;
+        endLBA = (offset + length + blockLength - 1) / blockLength;
+        skip = (int) (offset % blockLength);
+        remaining = length;
+        ring = new Slot[Math.max(1, depth)];
+        try {
+            for (int i = 0; i < ring.length; i++) {
+                ring[i] = new Slot(new byte[bufferBlocks * blockLength], usbSCSI.createCommandBlock());
+                submit(ring[i]);
+            }
+        } catch (RuntimeException ex) {
+            // Nobody will close a reader that was never returned.
+            releaseAll();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return the number of bytes not yet delivered
+     */
+    public synchronized long getRemaining() {
+        return remaining;
+    }
+
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (remaining == 0) {
+            return -1;
+        }
+        int total = 0;
+        boolean completed = false;
+        try {
+            begin();
+            // An asynchronous close stops the loop at the next buffer.
+            while (dst.hasRemaining() && remaining > 0 && isOpen()) {
+                Slot slot = take();
+                int length = Math.min(dst.remaining(), slot.limit - slot.position);
+                dst.put(slot.buffer, slot.position, length);
+                slot.position += length;
+                remaining -= length;
+                total += length;
+                if (slot.position == slot.limit) {
+                    advance();
+                }
+            }
+            completed = isOpen();
+        } finally {
+            end(completed);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the undelivered part of the next completed transfer without copying it,
+     * or null at the end of the stream.
+     * The buffer stays valid until the next call to a read method.
+     */
+    public synchronized ByteBuffer nextBuffer() throws IOException {
+        ensureOpen();
+        if (remaining == 0) {
+            return null;
+        }
+        boolean completed = false;
+        try {
+            begin();
+            Slot slot = take();
+            int length = slot.limit - slot.position;
+            ByteBuffer buffer = ByteBuffer.wrap(slot.buffer, slot.position, length).slice();
+            slot.position = slot.limit;
+            remaining -= length;
+            // The slot is resubmitted on the next call, once the caller is done with it.
+            headTaken = true;
+            completed = true;
+            return buffer;
+        } finally {
+            end(completed);
+        }
+    }
+
+    protected synchronized void implCloseChannel() throws IOException {
+        releaseAll();
+        remaining = 0;
+    }
+
+    /**
+     * Waits for and releases every submitted command;
+     * buffers belong to the transport until their commands finish.
+     */
+    private void releaseAll() {
+        for (int i = 0; i < ring.length; i++) {
+            if (ring[i] == null) {
+                continue;
+            }
+            CommandFuture future = ring[i].future;
+            if (future != null) {
+                future.getUninterruptibly();
+                future.release();
+                ring[i].future = null;
+            }
+        }
+    }
+
+    /**
+     * Waits for the head slot and returns it with its data window set.
+     */
+    private Slot take() throws IOException {
+        if (headTaken) {
+            headTaken = false;
+            advance();
+        }
+        Slot slot = ring[head];
+        if (slot.position < slot.limit) {
+            return slot;
+        }
+        CommandFuture future = slot.future;
+        if (future == null) {
+            throw new IOException("Stream ended early");
+        }
+        CommandStatusWrapper csw = future.getUninterruptibly();
+        byte status = csw.getStatus();
+        future.release();
+        slot.future = null;
+        if (status != CommandStatusWrapper.STATUS_COMMAND_PASSED) {
+            throw new IOException("READ failed at LBA " + slot.lba + ": status " + status);
+        }
+        if (!device.overlayDirty(slot.lba, slot.blocks, slot.buffer, 0, slot.dirty, slot.removals)) {
+            // A flush overtook the READ; read the blocks again.
+            device.readBlocks(slot.lba, slot.blocks, slot.buffer, 0);
+        }
+        slot.position = skip;
+        slot.limit = (int) Math.min(slot.blocks * blockLength, skip + remaining);
+        skip = 0;
+        return slot;
+    }
+
+    private void advance() {
+        submit(ring[head]);
+        head = (head + 1) % ring.length;
+    }
+
+    private void submit(Slot slot) {
+        slot.position = 0;
+        slot.limit = 0;
+        if (nextLBA >= endLBA) {
+            slot.future = null;
+            return;
+        }
+        int blocks = (int) Math.min(bufferBlocks, endLBA - nextLBA);
+        slot.lba = nextLBA;
+        slot.blocks = blocks;
+        slot.dirty = device.isDirty(nextLBA, blocks);
+        slot.removals = device.getDirtyRemovalCount();
+        slot.future = usbSCSI.readAsync(slot.cbw, nextLBA, blocks, slot.buffer, 0, null);
+        nextLBA += blocks;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private static class Slot {
+
+        byte[] buffer;
+        CommandBlockWrapper cbw;
+        CommandFuture future;
+        long lba;
+        int blocks;
+        boolean dirty;
+        int removals;
+        int position;
+        int limit;
+
+        Slot(byte[] buffer, CommandBlockWrapper cbw) {
+            this.buffer = buffer;
+            this.cbw = cbw;
+        }
+    }
+}
@@ -0,0 +1,876 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+import java.util.List;
+import javax.usb.UsbConst;
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbDevice;
+import javax.usb.UsbEndpoint;
+import javax.usb.UsbException;
+import javax.usb.UsbInterface;
+import javax.usb.UsbIrp;
+import javax.usb.UsbPipe;
+import javax.usb.UsbStallException;
+import javax.usb.event.UsbPipeDataEvent;
+import javax.usb.event.UsbPipeErrorEvent;
+import javax.usb.event.UsbPipeListener;
+import javax.usb.util.StandardRequest;
+import net.sf.microlog.core.Logger;
+import net.sf.microlog.core.LoggerFactory;
+import org.squilla.io.FrameBuffer;
+
+/**
+ * Bulk-Only Transport for a single mass storage interface.
+ * Each attached interface owns its own pipes, queues and worker thread.
+ * <p>
+ * In pipelined mode the CBW, data and CSW IRPs of a command are queued
+ * with asyncSubmit at once, so the host does not idle between phases.
+ * Errors fall back to the synchronous recovery states.
+ * <p>
+ * Every submitted command gets a unique tag and its own {@link CommandFuture},
+ * completed by the CSW carrying the same tag.
+ * <p>
+ * IRPs are created once per pipe and reused, and futures (with their CSW)
+ * are recycled through a bounded pool, so a steady stream of commands
+ * does not allocate.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class BulkOnlyTransport implements Runnable {
+
+    public static final int STATE_INIT = 0;
+    public static final int STATE_COMMAND_TRANSPORT = 1;
+    public static final int STATE_DATA_IN = 2;
+    public static final int STATE_DATA_OUT = 3;
+    public static final int STATE_STATUS_TRANSPORT_1ST = 4;
+    public static final int STATE_STATUS_TRANSPORT_2ND = 5;
+    public static final int STATE_RESET_RECOVERY = 6;
+    public static final int STATE_DONE = 7;
+    public static final byte REQUEST_MASS_STORAGE_RESET = (byte) 0xFF;
+    public static final byte REQUEST_GET_MAX_LUN = (byte) 0xFE;
+    private static final int COMMAND_BUFFER_SIZE = 64;
+    private static final int QUEUE_SIZE = 32;
+    private static final long PIPELINE_POLL_INTERVAL = 100;
+    private static final int POOL_SIZE = QUEUE_SIZE;
+
+    private UsbDevice usbDevice;
+    private UsbInterface usbInterface;
+    private UsbEndpoint bulkIn;
+    private UsbEndpoint bulkOut;
+    private UsbPipe bulkInPipe;
+    private UsbPipe bulkOutPipe;
+    private byte[] rawCommandBuffer;
+    private FrameBuffer commandBuffer;
+    private byte[] rawStatusBuffer;
+    private FrameBuffer statusBuffer;
+    private UsbIrp cbwIrp;
+    private UsbIrp dataInIrp;
+    private UsbIrp dataOutIrp;
+    private UsbIrp cswIrp;
+    private boolean pipelined;
+    private PipelineListener pipelineListener;
+    private int state;
+    private byte maxLUN;
+    private CommandScheduler scheduler;
+    private CommandFuture[] pendingCommands;
+    private int pendingCount;
+    private CommandFuture[] futurePool;
+    private int futurePoolCount;
+    private int nextTag;
+    private CommandFuture currentCommand;
+    private CommandBlockWrapper currentCBW;
+    private CommandStatusWrapper currentCSW;
+    private Thread processThread;
+    private volatile boolean closed;
+    private long phaseStart;
+    private volatile int resetCount;
+    private TransportMetrics metrics;
+    private Logger logger = LoggerFactory.getLogger(BulkOnlyTransport.class);
+
+    public BulkOnlyTransport(UsbDevice usbDevice, UsbInterface usbInterface) {
+        this.usbDevice = usbDevice;
+        this.usbInterface = usbInterface;
+        rawCommandBuffer = new byte[COMMAND_BUFFER_SIZE];
+        commandBuffer = new FrameBuffer(rawCommandBuffer);
+        rawStatusBuffer = new byte[COMMAND_BUFFER_SIZE];
+        statusBuffer = new FrameBuffer(rawStatusBuffer);
+        pipelineListener = new PipelineListener();
+        scheduler = new FairCommandScheduler(QUEUE_SIZE);
+        pendingCommands = new CommandFuture[QUEUE_SIZE * 2];
+        futurePool = new CommandFuture[POOL_SIZE];
+        nextTag = 1;
+        maxLUN = -1;
+        metrics = new TransportMetrics();
+    }
+
+    public UsbDevice getUsbDevice() {
+        return usbDevice;
+    }
+
+    public UsbInterface getUsbInterface() {
+        return usbInterface;
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * Must be called before {@link #open()}.
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    public boolean open() throws UsbException {
+        List epList = usbInterface.getUsbEndpoints();
+        for (int index = 0; index < epList.size(); index++) {
+            UsbEndpoint ep = (UsbEndpoint) epList.get(index);
+            if (ep.getType() == UsbConst.ENDPOINT_TYPE_BULK) {
+                if (ep.getDirection() == UsbConst.ENDPOINT_DIRECTION_IN) {
+                    bulkIn = ep;
+                } else {
+                    bulkOut = ep;
+                }
+            }
+        }
+
+        if ((bulkIn == null) || (bulkOut == null)) {
+            return false;
+        }
+
+        usbInterface.claim();
+        bulkInPipe = bulkIn.getUsbPipe();
+        bulkOutPipe = bulkOut.getUsbPipe();
+        bulkInPipe.open();
+        bulkOutPipe.open();
+        cbwIrp = bulkOutPipe.createUsbIrp();
+        dataInIrp = bulkInPipe.createUsbIrp();
+        dataOutIrp = bulkOutPipe.createUsbIrp();
+        cswIrp = bulkInPipe.createUsbIrp();
+        if (pipelined) {
+            bulkInPipe.addUsbPipeListener(pipelineListener);
+            bulkOutPipe.addUsbPipeListener(pipelineListener);
+        }
+        // Known before start, so that every LUN can be registered at once.
+        getMaxLUN();
+        return true;
+    }
+
+    public void start() {
+        if (processThread != null) {
+            return;
+        }
+
+        processThread = new Thread(this, BulkOnlyTransport.class.getName());
+        processThread.setDaemon(true);
+        processThread.start();
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        // Wake up the worker if it is waiting for a command.
+        scheduler.close();
+        pipelineListener.cancel();
+        try {
+            if (bulkInPipe.isOpen()) {
+                bulkInPipe.abortAllSubmissions();
+                bulkInPipe.close();
+            }
+            if (bulkOutPipe.isOpen()) {
+                bulkOutPipe.abortAllSubmissions();
+                bulkOutPipe.close();
+            }
+            usbInterface.release();
+        } catch (Exception ex) {
+            // Device may already be gone.
+            logger.trace(ex);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public TransportMetrics getMetrics() {
+        return metrics;
+    }
+
+    public CommandScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Replaces the default {@link FairCommandScheduler}.
+     * Must be called before {@link #start()}.
+     */
+    public void setScheduler(CommandScheduler scheduler) {
+        if (processThread != null) {
+            throw new IllegalStateException("Transport is already started");
+        }
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return the number of reset recoveries since the transport was opened
+     */
+    public int getResetCount() {
+        return resetCount;
+    }
+
+    public void run() {
+        setState(STATE_INIT);
+        while (!closed) {
+            try {
+                process();
+            } catch (UsbException ex) {
+                logger.warn(ex);
+                recover();
+            } catch (RuntimeException ex) {
+                if (!closed) {
+                    logger.warn(ex);
+                    recover();
+                }
+            }
+        }
+        // Release every caller still waiting for a command.
+        CommandFuture[] futures;
+        synchronized (this) {
+            futures = new CommandFuture[pendingCommands.length];
+            System.arraycopy(pendingCommands, 0, futures, 0, futures.length);
+        }
+        for (int i = 0; i < futures.length; i++) {
+            if (futures[i] != null) {
+                failCommand(futures[i]);
+            }
+        }
+        logger.debug("BBB - Closed");
+    }
+
+    protected void setState(int state) {
+        this.state = state;
+    }
+
+    /**
+     * Executes the command block and waits for its status.
+     * The tag of the command block is assigned by the transport.
+     * The returned status belongs to the caller and is never recycled.
+     */
+    public CommandStatusWrapper executeCommandBlock(CommandBlockWrapper cbw) {
+        CommandFuture future = executeCommandBlockAsync(cbw, null);
+        CommandStatusWrapper csw = new CommandStatusWrapper();
+        csw.copy(future.getUninterruptibly());
+        future.release();
+        return csw;
+    }
+
+    public CommandFuture executeCommandBlockAsync(CommandBlockWrapper cbw) {
+        return executeCommandBlockAsync(cbw, null);
+    }
+
+    public CommandFuture executeCommandBlockAsync(CommandBlockWrapper cbw, CommandListener listener) {
+        return submit(cbw, listener, CommandScheduler.PRIORITY_NORMAL, 0, true);
+    }
+
+    /**
+     * Queues the command block with a newly allocated tag, waiting while
+     * the scheduler is full. The command block must not be modified until
+     * the future is done.
+     * @param priority one of the CommandScheduler priorities
+     * @param deadline the time in milliseconds by which the command should
+     * be dispatched, or 0 for the scheduler's default
+     */
+    public CommandFuture executeCommandBlockAsync(CommandBlockWrapper cbw, CommandListener listener,
+            int priority, long deadline) {
+        return submit(cbw, listener, priority, deadline, true);
+    }
+
+    /**
+     * Same as {@link #executeCommandBlockAsync(CommandBlockWrapper, CommandListener, int, long)}
+     * but does not wait.
+     * @return the future, or null if the scheduler is full
+     */
+    public CommandFuture tryExecuteCommandBlockAsync(CommandBlockWrapper cbw, CommandListener listener,
+            int priority, long deadline) {
+        return submit(cbw, listener, priority, deadline, false);
+    }
+
+    private CommandFuture submit(CommandBlockWrapper cbw, CommandListener listener,
+            int priority, long deadline, boolean block) {
+        CommandFuture future;
+        boolean rejected;
+        synchronized (this) {
+            future = obtainFuture();
+            cbw.setTag(nextTag++);
+            future.reset(cbw, listener, priority, deadline);
+            rejected = closed;
+            if (!rejected) {
+                putPending(future);
+            }
+        }
+        if (rejected) {
+            future.fail();
+            return future;
+        }
+        boolean queued;
+        try {
+            queued = block ? scheduler.put(future) : scheduler.offer(future);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            queued = false;
+        }
+        if (!queued) {
+            // The worker fails whatever is pending when it exits; only the owner may recycle.
+            boolean owner = removePending(future.getTag()) != null;
+            if (owner && !block && !closed) {
+                recycle(future);
+                return null;
+            }
+            future.fail();
+        }
+        return future;
+    }
+
+    /**
+     * Returns a future for the command block that is already done with the
+     * given status, without the scheduler or the bus. Subclasses standing in
+     * for a device, such as benchmark stubs, answer commands with it.
+     */
+    protected CommandFuture completeCommandBlock(CommandBlockWrapper cbw, CommandListener listener,
+            int priority, long deadline, byte status, int dataResidue) {
+        CommandFuture future;
+        synchronized (this) {
+            future = obtainFuture();
+            cbw.setTag(nextTag++);
+            future.reset(cbw, listener, priority, deadline);
+        }
+        CommandStatusWrapper csw = future.getCommandStatus();
+        csw.setTag(cbw.getTag());
+        csw.setDataResidue(dataResidue);
+        csw.setStatus(status);
+        future.complete();
+        return future;
+    }
+
+    private CommandFuture obtainFuture() {
+        if (futurePoolCount > 0) {
+            CommandFuture future = futurePool[--futurePoolCount];
+            futurePool[futurePoolCount] = null;
+            return future;
+        }
+        return new CommandFuture(this);
+    }
+
+    synchronized void recycle(CommandFuture future) {
+        if (futurePoolCount < futurePool.length) {
+            futurePool[futurePoolCount++] = future;
+        }
+    }
+
+    private void putPending(CommandFuture future) {
+        if ((pendingCount + 1) * 2 > pendingCommands.length) {
+            CommandFuture[] old = pendingCommands;
+            pendingCommands = new CommandFuture[old.length * 2];
+            pendingCount = 0;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i] != null) {
+                    putPending(old[i]);
+                }
+            }
+        }
+        int mask = pendingCommands.length - 1;
+        // Tags are sequential, so they spread over the table by themselves.
+        int i = future.getTag() & mask;
+        while (pendingCommands[i] != null) {
+            i = (i + 1) & mask;
+        }
+        pendingCommands[i] = future;
+        pendingCount++;
+    }
+
+    private synchronized CommandFuture removePending(int tag) {
+        int mask = pendingCommands.length - 1;
+        int i = tag & mask;
+        while (pendingCommands[i] != null) {
+            if (pendingCommands[i].getTag() == tag) {
+                CommandFuture future = pendingCommands[i];
+                deletePending(i);
+                return future;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Linear probing delete; shifts back the entries that probed past the slot.
+     */
+    private void deletePending(int i) {
+        int mask = pendingCommands.length - 1;
+        pendingCommands[i] = null;
+        pendingCount--;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            CommandFuture future = pendingCommands[j];
+            if (future == null) {
+                return;
+            }
+            int k = future.getTag() & mask;
+            boolean reachable = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+            if (!reachable) {
+                pendingCommands[i] = future;
+                pendingCommands[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    private void failCommand(CommandFuture future) {
+        removePending(future.getTag());
+        future.fail();
+    }
+
+    /**
+     * Completes the command which the CSW belongs to.
+     */
+    private void completeCommand(CommandStatusWrapper csw) {
+        CommandFuture future = removePending(csw.getTag());
+        if (future != null) {
+            future.complete();
+        }
+    }
+
+    /**
+     * Called when a phase threw out of the state machine.
+     */
+    private void recover() {
+        if (closed || currentCommand == null) {
+            return;
+        }
+        if (state != STATE_RESET_RECOVERY) {
+            setState(STATE_RESET_RECOVERY);
+        } else {
+            // Reset recovery itself failed; give up the command.
+            failCommand(currentCommand);
+            currentCommand = null;
+            currentCBW = null;
+            setState(STATE_COMMAND_TRANSPORT);
+        }
+    }
+
+    private static UsbIrp prepareIrp(UsbIrp irp, byte[] data, int offset, int length) {
+        irp.setData(data, offset, length);
+        irp.setActualLength(0);
+        irp.setUsbException(null);
+        irp.setComplete(false);
+        return irp;
+    }
+
+    public void process() throws UsbException {
+        logger.trace("BBB - Process");
+        UsbIrp irp;
+        switch (state) {
+        case STATE_INIT:
+            logger.trace("BBB - Init");
+            if (logger.isTraceEnabled()) {
+                logger.trace("MAX LUN is : " + getMaxLUN());
+            }
+            setState(STATE_COMMAND_TRANSPORT);
+            break;
+        case STATE_COMMAND_TRANSPORT:
+            logger.trace("BBB - Command Transport");
+            try {
+                currentCommand = scheduler.take();
+            } catch (InterruptedException ex) {
+                logger.warn(ex);
+            }
+            if (currentCommand == null) {
+                break;
+            }
+            currentCBW = currentCommand.getCommandBlock();
+            logger.trace("BBB - Dequeue");
+            metrics.commandStarted(currentCBW.getCB() == null ? 0 : currentCBW.getCB()[0], scheduler.size());
+            commandBuffer.rewind();
+            commandBuffer.clean(CommandBlockWrapper.CBW_PACKET_SIZE);
+            currentCBW.pull(commandBuffer);
+            if (pipelined) {
+                processPipelined();
+                break;
+            }
+            irp = prepareIrp(cbwIrp, rawCommandBuffer, 0, CommandBlockWrapper.CBW_PACKET_SIZE);
+            logger.trace("BBB - Sync Submit");
+            phaseStart = System.currentTimeMillis();
+            bulkOutPipe.syncSubmit(irp);
+            metrics.getCbwLatency().record(System.currentTimeMillis() - phaseStart);
+            if (currentCBW.getDataTransferLength() > 0) {
+                if (currentCBW.getFlags() == CommandBlockWrapper.CBW_DIRECTION_IN) {
+                    logger.trace("BBB - Next Data IN");
+                    setState(STATE_DATA_IN);
+                } else {
+                    logger.trace("BBB - Next Data OUT");
+                    setState(STATE_DATA_OUT);
+                }
+            } else {
+                logger.trace("BBB - Next Status");
+                setState(STATE_STATUS_TRANSPORT_1ST);
+            }
+            break;
+        case STATE_DATA_IN:
+            logger.trace("BBB - Data IN");
+            irp = prepareIrp(dataInIrp, currentCBW.getData(), currentCBW.getDataOffset(), currentCBW.getDataTransferLength());
+            phaseStart = System.currentTimeMillis();
+            try {
+                bulkInPipe.syncSubmit(irp);
+            } catch (UsbException ex) {
+                logger.trace(ex);
+                countStall(ex);
+                clearEndpoint(bulkIn);
+            }
+            metrics.getDataLatency().record(System.currentTimeMillis() - phaseStart);
+            setState(STATE_STATUS_TRANSPORT_1ST);
+            break;
+        case STATE_DATA_OUT:
+            logger.trace("BBB - Data OUT");
+            irp = prepareIrp(dataOutIrp, currentCBW.getData(), currentCBW.getDataOffset(), currentCBW.getDataTransferLength());
+            phaseStart = System.currentTimeMillis();
+            try {
+                bulkOutPipe.syncSubmit(irp);
+            } catch (UsbException ex) {
+                logger.trace(ex);
+                countStall(ex);
+                clearEndpoint(bulkOut);
+            }
+            metrics.getDataLatency().record(System.currentTimeMillis() - phaseStart);
+            setState(STATE_STATUS_TRANSPORT_1ST);
+            break;
+        case STATE_STATUS_TRANSPORT_1ST:
+        case STATE_STATUS_TRANSPORT_2ND:
+            logger.trace("BBB - Status Tranport");
+            irp = prepareIrp(cswIrp, rawStatusBuffer, 0, CommandStatusWrapper.CSW_PACKET_SIZE);
+            phaseStart = System.currentTimeMillis();
+            try {
+                bulkInPipe.syncSubmit(irp);
+                metrics.getCswLatency().record(System.currentTimeMillis() - phaseStart);
+            } catch (UsbException ex) {
+                logger.trace(ex);
+                countStall(ex);
+                if (state == STATE_STATUS_TRANSPORT_1ST) {
+                    // clear endpoint then 2nd attempt
+                    clearEndpoint(bulkIn);
+                    setState(STATE_STATUS_TRANSPORT_2ND);
+                    break;
+                } else {
+                    setState(STATE_RESET_RECOVERY);
+                    break;
+                }
+            }
+            checkStatus();
+            break;
+        case STATE_DONE:
+            logger.trace("BBB - Done");
+            metrics.commandCompleted(currentCSW.getStatus(), currentCommand.getSubmitTime());
+            if (currentCBW.getDataTransferLength() > 0) {
+                // As reported by the device, whichever way the data phase went.
+                metrics.dataTransferred(currentCBW.getFlags() == CommandBlockWrapper.CBW_DIRECTION_IN,
+                        currentCBW.getDataTransferLength() - currentCSW.getDataResidue());
+            }
+            completeCommand(currentCSW);
+            currentCommand = null;
+            currentCBW = null;
+            setState(STATE_COMMAND_TRANSPORT);
+            break;
+        case STATE_RESET_RECOVERY:
+            logger.trace("BBB - Reset Recovery");
+            resetCount++;
+            metrics.resetRecovered();
+            massStorageReset();
+            // clear feature HALT to bulk-in
+            clearEndpoint(bulkIn);
+            // clear feature HALT to bulk-out
+            clearEndpoint(bulkOut);
+            metrics.commandCompleted(CommandStatusWrapper.STATUS_PHASE_ERROR, currentCommand.getSubmitTime());
+            failCommand(currentCommand);
+            currentCommand = null;
+            currentCBW = null;
+            setState(STATE_COMMAND_TRANSPORT);
+            break;
+        }
+    }
+
+    private void checkStatus() {
+        statusBuffer.rewind();
+        currentCSW = currentCommand.getCommandStatus();
+        currentCSW.drain(statusBuffer);
+        // CSW Valid ?
+        if (currentCSW.getTag() == currentCBW.getTag()) {
+            // Phase Error Status ?
+            if (currentCSW.getStatus() != CommandStatusWrapper.STATUS_PHASE_ERROR) {
+                setState(STATE_DONE);
+                return;
+            }
+        }
+        setState(STATE_RESET_RECOVERY);
+    }
+
+    /**
+     * Queues all phases of the current command without waiting between them,
+     * then waits for the CSW (or the first failed phase) to complete.
+     */
+    private void processPipelined() throws UsbException {
+        logger.trace("BBB - Pipelined Submit");
+        prepareIrp(cbwIrp, rawCommandBuffer, 0, CommandBlockWrapper.CBW_PACKET_SIZE);
+
+        UsbIrp dataIrp = null;
+        UsbPipe dataPipe = null;
+        UsbEndpoint dataEndpoint = null;
+        if (currentCBW.getDataTransferLength() > 0) {
+            if (currentCBW.getFlags() == CommandBlockWrapper.CBW_DIRECTION_IN) {
+                dataPipe = bulkInPipe;
+                dataEndpoint = bulkIn;
+                dataIrp = dataInIrp;
+            } else {
+                dataPipe = bulkOutPipe;
+                dataEndpoint = bulkOut;
+                dataIrp = dataOutIrp;
+            }
+            prepareIrp(dataIrp, currentCBW.getData(), currentCBW.getDataOffset(),
+                    currentCBW.getDataTransferLength());
+        }
+
+        prepareIrp(cswIrp, rawStatusBuffer, 0, CommandStatusWrapper.CSW_PACKET_SIZE);
+
+        pipelineListener.arm(cbwIrp, dataIrp, cswIrp);
+        phaseStart = System.currentTimeMillis();
+        bulkOutPipe.asyncSubmit(cbwIrp);
+        if (dataIrp != null) {
+            dataPipe.asyncSubmit(dataIrp);
+        }
+        bulkInPipe.asyncSubmit(cswIrp);
+
+        pipelineListener.await();
+        if (closed) {
+            return;
+        }
+        pipelineListener.recordLatencies(phaseStart);
+
+        if (cbwIrp.isUsbException()) {
+            logger.trace(cbwIrp.getUsbException());
+            countStall(cbwIrp.getUsbException());
+            abortSubmissions();
+            setState(STATE_RESET_RECOVERY);
+        } else if (dataIrp != null && dataIrp.isUsbException()) {
+            logger.trace(dataIrp.getUsbException());
+            countStall(dataIrp.getUsbException());
+            // The CSW may still be queued behind the halted data phase.
+            abortSubmissions();
+            clearEndpoint(dataEndpoint);
+            if (cswIrp.isUsbException()) {
+                setState(STATE_STATUS_TRANSPORT_1ST);
+            } else {
+                // Device stalled the data phase but already sent the CSW.
+                checkStatus();
+            }
+        } else if (cswIrp.isUsbException()) {
+            logger.trace(cswIrp.getUsbException());
+            countStall(cswIrp.getUsbException());
+            // clear endpoint then 2nd attempt
+            clearEndpoint(bulkIn);
+            setState(STATE_STATUS_TRANSPORT_2ND);
+        } else {
+            checkStatus();
+        }
+    }
+
+    private void abortSubmissions() {
+        bulkInPipe.abortAllSubmissions();
+        bulkOutPipe.abortAllSubmissions();
+        pipelineListener.awaitAll();
+    }
+
+    private void countStall(UsbException ex) {
+        if (ex instanceof UsbStallException) {
+            metrics.stalled();
+        }
+    }
+
+    private void clearEndpoint(UsbEndpoint ep) throws UsbException {
+        metrics.haltCleared();
+        StandardRequest.clearFeature(
+                usbDevice,
+                UsbConst.REQUESTTYPE_RECIPIENT_ENDPOINT,
+                UsbConst.FEATURE_SELECTOR_ENDPOINT_HALT,
+                ep.getUsbEndpointDescriptor().bEndpointAddress());
+    }
+
+    public void massStorageReset() throws UsbException {
+        byte bmRequestType = UsbConst.REQUESTTYPE_TYPE_CLASS | UsbConst.REQUESTTYPE_RECIPIENT_INTERFACE | UsbConst.REQUESTTYPE_DIRECTION_OUT;
+        UsbControlIrp controlIrp = usbDevice.createUsbControlIrp(bmRequestType, REQUEST_MASS_STORAGE_RESET, (short) 0x0000, (short) 0);
+        usbDevice.syncSubmit(controlIrp);
+    }
+
+    /**
+     * Devices without multiple LUNs may STALL Get Max LUN, which means LUN 0 only.
+     */
+    public byte getMaxLUN() {
+        if (maxLUN == -1) {
+            byte bmRequestType = UsbConst.REQUESTTYPE_TYPE_CLASS | UsbConst.REQUESTTYPE_RECIPIENT_INTERFACE | UsbConst.REQUESTTYPE_DIRECTION_IN;
+            UsbControlIrp controlIrp = usbDevice.createUsbControlIrp(bmRequestType, REQUEST_GET_MAX_LUN, (short) 0x0000, (short) 0);
+            controlIrp.setData(rawCommandBuffer);
+            controlIrp.setLength(1);
+            try {
+                usbDevice.syncSubmit(controlIrp);
+                maxLUN = (byte) (rawCommandBuffer[0] & 0x0F);
+            } catch (UsbException ex) {
+                logger.debug("Get Max LUN failed: " + ex);
+                maxLUN = 0;
+            }
+        }
+        return maxLUN;
+    }
+
+    private class PipelineListener implements UsbPipeListener {
+
+        private UsbIrp[] irps = new UsbIrp[3];
+        private long[] completionTimes = new long[3];
+        private boolean cancelled;
+
+        private synchronized void arm(UsbIrp cbwIrp, UsbIrp dataIrp, UsbIrp cswIrp) {
+            irps[0] = cbwIrp;
+            irps[1] = dataIrp;
+            irps[2] = cswIrp;
+            for (int i = 0; i < completionTimes.length; i++) {
+                completionTimes[i] = 0;
+            }
+        }
+
+        private synchronized void completed(UsbIrp irp) {
+            for (int i = 0; i < irps.length; i++) {
+                if (irps[i] == irp && completionTimes[i] == 0) {
+                    completionTimes[i] = System.currentTimeMillis();
+                }
+            }
+        }
+
+        /**
+         * Each phase is measured from the completion of the previous one.
+         */
+        private synchronized void recordLatencies(long start) {
+            // Events may lag behind, and pipes may report out of order;
+            // once the CSW is in, every earlier phase is over too.
+            boolean statusDone = irps[2].isComplete();
+            for (int i = 0; i < irps.length; i++) {
+                if (irps[i] != null && (statusDone || irps[i].isComplete()) && completionTimes[i] == 0) {
+                    completionTimes[i] = System.currentTimeMillis();
+                }
+            }
+            long cbwTime = completionTimes[0];
+            if (cbwTime == 0) {
+                return;
+            }
+            metrics.getCbwLatency().record(cbwTime - start);
+            long dataTime = completionTimes[1];
+            if (dataTime != 0) {
+                metrics.getDataLatency().record(dataTime - cbwTime);
+            } else {
+                dataTime = cbwTime;
+            }
+            if (completionTimes[2] != 0) {
+                metrics.getCswLatency().record(completionTimes[2] - Math.max(dataTime, cbwTime));
+            }
+        }
+
+        private synchronized boolean isFailed() {
+            for (int i = 0; i < irps.length; i++) {
+                if (irps[i] != null && irps[i].isComplete() && irps[i].isUsbException()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private synchronized boolean isAllComplete() {
+            for (int i = 0; i < irps.length; i++) {
+                if (irps[i] != null && !irps[i].isComplete()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Waits until the CSW arrives or one of the phases fails.
+         */
+        private synchronized void await() {
+            boolean interrupted = false;
+            while (!cancelled && !irps[2].isComplete() && !isFailed()) {
+                interrupted |= waitEvent();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Waits until every IRP of the command is returned after an abort.
+         */
+        private synchronized void awaitAll() {
+            boolean interrupted = false;
+            while (!cancelled && !isAllComplete()) {
+                interrupted |= waitEvent();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * An interrupt does not end the wait, as the IRPs are still in flight;
+         * only {@link #cancel()} does.
+         * @return true if interrupted
+         */
+        private boolean waitEvent() {
+            try {
+                // Events may be dispatched before the IRP is marked complete.
+                wait(PIPELINE_POLL_INTERVAL);
+                return false;
+            } catch (InterruptedException ex) {
+                return true;
+            }
+        }
+
+        private synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+
+        public synchronized void errorEventOccurred(UsbPipeErrorEvent event) {
+            completed(event.getUsbIrp());
+            notifyAll();
+        }
+
+        public synchronized void dataEventOccurred(UsbPipeDataEvent event) {
+            completed(event.getUsbIrp());
+            notifyAll();
+        }
+    }
+}
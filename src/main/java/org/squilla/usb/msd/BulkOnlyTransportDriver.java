@@ -15,68 +15,47 @@
  */
 package org.squilla.usb.msd;
 
-import java.util.List;
-import javax.usb.UsbConst;
-import javax.usb.UsbControlIrp;
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Vector;
 import javax.usb.UsbDevice;
-import javax.usb.UsbEndpoint;
 import javax.usb.UsbException;
 import javax.usb.UsbInterface;
 import javax.usb.UsbInterfaceDescriptor;
-import javax.usb.UsbIrp;
-import javax.usb.UsbPipe;
-import javax.usb.util.StandardRequest;
+import javax.usb.event.UsbDeviceDataEvent;
+import javax.usb.event.UsbDeviceErrorEvent;
+import javax.usb.event.UsbDeviceEvent;
+import javax.usb.event.UsbDeviceListener;
 import net.sf.microlog.core.Logger;
 import net.sf.microlog.core.LoggerFactory;
 import org.osgi.framework.BundleContext;
-import org.squilla.io.FrameBuffer;
+import org.osgi.framework.ServiceRegistration;
 import org.squilla.usb.UsbDeviceDriver;
-import org.squilla.util.ArrayFifoQueue;
-import org.squilla.util.BlockingFifoQueue;
 
 /**
+ * Driver for Bulk-Only mass storage interfaces.
+ * Creates an isolated {@link BulkOnlyTransport} for each attached interface,
+ * and registers a {@link UsbSCSI} and a {@link BlockDevice} for each of its
+ * logical units. The block cache size is split among the logical units.
  *
  * @author Shotaro Uchida <fantom@xmaker.mx>
  */
-public class BulkOnlyTransportDriver extends UsbDeviceDriver implements Runnable {
+public class BulkOnlyTransportDriver extends UsbDeviceDriver {
 
-    public static final int STATE_INIT = 0;
-    public static final int STATE_COMMAND_TRANSPORT = 1;
-    public static final int STATE_DATA_IN = 2;
-    public static final int STATE_DATA_OUT = 3;
-    public static final int STATE_STATUS_TRANSPORT_1ST = 4;
-    public static final int STATE_STATUS_TRANSPORT_2ND = 5;
-    public static final int STATE_RESET_RECOVERY = 6;
-    public static final int STATE_DONE = 7;
-    public static final byte REQUEST_MASS_STORAGE_RESET = (byte) 0xFF;
-    public static final byte REQUEST_GET_MAX_LUN = (byte) 0xFE;
-    private static final int COMMAND_BUFFER_SIZE = 64;
-    private static final int QUEUE_SIZE = 32;
+    public static final String PIPELINED = "org.squilla.usb.msd.pipelined";
+    public static final String CACHE_SIZE = "org.squilla.usb.msd.cacheSize";
+    public static final String WRITE_BACK = "org.squilla.usb.msd.writeBack";
+    /** "fair" (default) or "deadline". */
+    public static final String SCHEDULER = "org.squilla.usb.msd.scheduler";
+    /** Service property holding the logical unit number as an Integer. */
+    public static final String LOGICAL_UNIT = "org.squilla.usb.msd.lun";
 
-    private UsbDevice usbDevice;
-    private UsbInterface usbInterface;
-    private UsbEndpoint bulkIn;
-    private UsbEndpoint bulkOut;
-    private UsbPipe bulkInPipe;
-    private UsbPipe bulkOutPipe;
-    private byte[] rawCommandBuffer;
-    private FrameBuffer commandBuffer;
-    private int state;
-    private byte maxLUN;
-    private BlockingFifoQueue commandBlockQueue;
-    private BlockingFifoQueue statusQueue;
-    private CommandBlockWrapper currentCBW;
-    private CommandStatusWrapper currentCSW;
-    private Thread processThread;
+    private Hashtable attachments;
     private Logger logger = LoggerFactory.getLogger(BulkOnlyTransportDriver.class);
 
     public BulkOnlyTransportDriver(BundleContext bc) {
         super(bc);
-        rawCommandBuffer = new byte[COMMAND_BUFFER_SIZE];
-        commandBuffer = new FrameBuffer(rawCommandBuffer);
-        commandBlockQueue = new ArrayFifoQueue(QUEUE_SIZE);
-        statusQueue = new ArrayFifoQueue(QUEUE_SIZE);
-        maxLUN = -1;
+        attachments = new Hashtable();
     }
 
     public int getClassCode() {
@@ -84,216 +63,148 @@ public class BulkOnlyTransportDriver extends UsbDeviceDriver implements Runnable
     }
     
     public boolean attach(UsbDevice usbDevice, UsbInterface usbInterface) throws UsbException {
-        this.usbDevice = usbDevice;
-        this.usbInterface = usbInterface;
-        
         UsbInterfaceDescriptor desc = usbInterface.getUsbInterfaceDescriptor();
-        logger.debug("Subclass: " + desc.bInterfaceSubClass());
+        if (logger.isDebugEnabled()) {
+            logger.debug("Subclass: " + desc.bInterfaceSubClass());
+        }
         if (desc.bInterfaceProtocol() != 0x50) {
             logger.error("Attached Device is NOT BBB");
             return false;
         }
-        
-        List epList = usbInterface.getUsbEndpoints();
-        for (int index = 0; index < epList.size(); index++) {
-            UsbEndpoint ep = (UsbEndpoint) epList.get(index);
-            if (ep.getType() == UsbConst.ENDPOINT_TYPE_BULK) {
-                if (ep.getDirection() == UsbConst.ENDPOINT_DIRECTION_IN) {
-                    bulkIn = ep;
-                } else {
-                    bulkOut = ep;
-                }
-            }
+        if (attachments.containsKey(usbInterface)) {
+            logger.warn("Interface is already attached");
+            return false;
         }
 
-        if ((bulkIn != null) && (bulkOut != null)) {
-            usbInterface.claim();
-            bulkInPipe = bulkIn.getUsbPipe();
-            bulkOutPipe = bulkOut.getUsbPipe();
-            bulkInPipe.open();
-            bulkOutPipe.open();
-            activate();
-            return true;
-        } else {
+        BulkOnlyTransport transport = new BulkOnlyTransport(usbDevice, usbInterface);
+        transport.setPipelined(isPipelined());
+        if ("deadline".equalsIgnoreCase(getBundleContext().getProperty(SCHEDULER))) {
+            transport.setScheduler(new DeadlineCommandScheduler(transport.getScheduler().getCapacity()));
+        }
+        if (!transport.open()) {
             return false;
         }
+        transport.start();
+
+        Attachment attachment = new Attachment(transport);
+        attachments.put(usbInterface, attachment);
+        usbDevice.addUsbDeviceListener(attachment);
+
+        int lunCount = transport.getMaxLUN() + 1;
+        if (logger.isDebugEnabled()) {
+            logger.debug("LUN count: " + lunCount);
+        }
+        Hashtable deviceProps = getDeviceProperties(usbDevice, usbInterface);
+        attachment.register(TransportMetrics.class.getName(), transport.getMetrics(), deviceProps);
+        int cacheSize = getCacheSize() / lunCount;
+        boolean writeBack = "true".equalsIgnoreCase(getBundleContext().getProperty(WRITE_BACK));
+        for (int lun = 0; lun < lunCount; lun++) {
+            Hashtable props = (Hashtable) deviceProps.clone();
+            props.put(LOGICAL_UNIT, new Integer(lun));
+
+            UsbSCSI usbSCSI = new UsbSCSI(transport);
+            usbSCSI.setLogicalUnitNumber((byte) lun);
+            attachment.register(UsbSCSI.class.getName(), usbSCSI, props);
+            UsbBlockDevice blockDevice = new UsbBlockDevice(usbSCSI);
+            if (cacheSize > 0) {
+                BlockCache blockCache = new BlockCache(cacheSize);
+                blockDevice.setBlockCache(blockCache);
+                attachment.blockCaches.add(blockCache);
+            }
+            blockDevice.setWriteBack(writeBack);
+            attachment.blockDevices.add(blockDevice);
+            attachment.register(BlockDevice.class.getName(), blockDevice, props);
+        }
+
+        return true;
     }
-    
-    private void activate() {
-        if (processThread != null) {
-            return;
+
+    private boolean isPipelined() {
+        return "true".equalsIgnoreCase(getBundleContext().getProperty(PIPELINED));
+    }
+
+    private int getCacheSize() {
+        String size = getBundleContext().getProperty(CACHE_SIZE);
+        if (size == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(size.trim());
+        } catch (NumberFormatException ex) {
+            logger.warn("Invalid " + CACHE_SIZE + ": " + size);
+            return 0;
         }
-        
-        processThread = new Thread(this, BulkOnlyTransportDriver.class.getName());
-        processThread.start();
-        
-        UsbSCSI usbSCSI = new UsbSCSI(this);
-        getBundleContext().registerService(UsbSCSI.class.getName(), usbSCSI, null);
     }
 
-    public void run() {
-        setState(STATE_INIT);
-        while (true) {
+    public void detach(UsbInterface usbInterface) {
+        Attachment attachment = (Attachment) attachments.remove(usbInterface);
+        if (attachment == null) {
+            return;
+        }
+        attachment.transport.getUsbDevice().removeUsbDeviceListener(attachment);
+        attachment.unregister();
+        for (int i = 0; i < attachment.blockDevices.size(); i++) {
             try {
-                process();
-            } catch (UsbException ex) {
-                logger.warn(ex);
+                ((UsbBlockDevice) attachment.blockDevices.get(i)).close();
+            } catch (IOException ex) {
+                logger.warn("Dirty blocks are lost: " + ex);
             }
         }
+        attachment.transport.close();
+        for (int i = 0; i < attachment.blockCaches.size(); i++) {
+            ((BlockCache) attachment.blockCaches.get(i)).clear();
+        }
+        logger.debug("BBB - Detached");
     }
 
-    protected void setState(int state) {
-        this.state = state;
+    public int getAttachedCount() {
+        return attachments.size();
     }
 
-    public CommandStatusWrapper executeCommandBlock(CommandBlockWrapper cbw) {
-        executeCommandBlockAsync(cbw);
-        return waitCommandStatus();
+    public void close() {
+        Object[] usbInterfaces = attachments.keySet().toArray();
+        for (int i = 0; i < usbInterfaces.length; i++) {
+            detach((UsbInterface) usbInterfaces[i]);
+        }
     }
 
-    public void executeCommandBlockAsync(CommandBlockWrapper cbw) {
-        commandBlockQueue.enqueue(cbw);
-    }
+    private class Attachment implements UsbDeviceListener {
 
-    public CommandStatusWrapper waitCommandStatus() {
-        return (CommandStatusWrapper) statusQueue.blockingDequeue();
-    }
+        private BulkOnlyTransport transport;
+        private Vector registrations;
+        private Vector blockCaches;
+        private Vector blockDevices;
 
-    public void process() throws UsbException {
-        logger.trace("BBB - Process");
-        UsbIrp irp;
-        switch (state) {
-        case STATE_INIT:
-            logger.trace("BBB - Init");
-            getMaxLUN();
-            logger.trace("MAX LUN is : " + getMaxLUN());
-            setState(STATE_COMMAND_TRANSPORT);
-            break;
-        case STATE_COMMAND_TRANSPORT:
-            logger.trace("BBB - Command Transport");
-            currentCBW = (CommandBlockWrapper) commandBlockQueue.blockingDequeue();
-            logger.trace("BBB - Dequeue");
-            irp = bulkOutPipe.createUsbIrp();
-            commandBuffer.rewind();
-            commandBuffer.clean(CommandBlockWrapper.CBW_PACKET_SIZE);
-            currentCBW.pull(commandBuffer);
-            irp.setData(rawCommandBuffer);
-            irp.setLength(CommandBlockWrapper.CBW_PACKET_SIZE);
-            logger.trace("BBB - Sync Submit");
-            bulkOutPipe.syncSubmit(irp);
-            if (currentCBW.getDataTransferLength() > 0) {
-                if (currentCBW.getFlags() == CommandBlockWrapper.CBW_DIRECTION_IN) {
-                    logger.trace("BBB - Next Data IN");
-                    setState(STATE_DATA_IN);
-                } else {
-                    logger.trace("BBB - Next Data OUT");
-                    setState(STATE_DATA_OUT);
-                }
-            } else {
-                logger.trace("BBB - Next Status");
-                setState(STATE_STATUS_TRANSPORT_1ST);
-            }
-            break;
-        case STATE_DATA_IN:
-            logger.trace("BBB - Data IN");
-            irp = bulkInPipe.createUsbIrp();
-            irp.setData(currentCBW.getData());
-            irp.setLength(currentCBW.getDataTransferLength());
-            try {
-                bulkInPipe.syncSubmit(irp);
-            } catch (UsbException ex) {
-                logger.trace(ex);
-                clearEndpoint(bulkIn);
-            }
-            setState(STATE_STATUS_TRANSPORT_1ST);
-            break;
-        case STATE_DATA_OUT:
-            logger.trace("BBB - Data OUT");
-            irp = bulkOutPipe.createUsbIrp();
-            irp.setData(currentCBW.getData());
-            irp.setLength(currentCBW.getDataTransferLength());
-            try {
-                bulkOutPipe.syncSubmit(irp);
-            } catch (UsbException ex) {
-                logger.trace(ex);
-                clearEndpoint(bulkOut);
-            }
-            setState(STATE_STATUS_TRANSPORT_1ST);
-            break;
-        case STATE_STATUS_TRANSPORT_1ST:
-        case STATE_STATUS_TRANSPORT_2ND:
-            logger.trace("BBB - Status Tranport");
-            commandBuffer.rewind();
-            irp = bulkInPipe.createUsbIrp();
-            irp.setData(rawCommandBuffer);
-            irp.setLength(CommandStatusWrapper.CSW_PACKET_SIZE);
-            try {
-                bulkInPipe.syncSubmit(irp);
-            } catch (UsbException ex) {
-                logger.trace(ex);
-                if (state == STATE_STATUS_TRANSPORT_1ST) {
-                    // clear endpoint then 2nd attempt
-                    clearEndpoint(bulkIn);
-                    setState(STATE_STATUS_TRANSPORT_2ND);
-                    break;
-                } else {
-                    setState(STATE_RESET_RECOVERY);
-                    break;
-                }
-            }
-            currentCSW = new CommandStatusWrapper();
-            currentCSW.drain(commandBuffer);
-            // CSW Valid ?
-            if (currentCSW != null && currentCSW.getTag() == currentCBW.getTag()) {
-                // Phase Error Status ?
-                if (currentCSW.getStatus() != CommandStatusWrapper.STATUS_PHASE_ERROR) {
-                    setState(STATE_DONE);
-                    break;
+        private Attachment(BulkOnlyTransport transport) {
+            this.transport = transport;
+            registrations = new Vector();
+            blockCaches = new Vector();
+            blockDevices = new Vector();
+        }
+
+        private void register(String clazz, Object service, Hashtable props) {
+            registrations.add(getBundleContext().registerService(clazz, service, props));
+        }
+
+        private void unregister() {
+            for (int i = 0; i < registrations.size(); i++) {
+                try {
+                    ((ServiceRegistration) registrations.get(i)).unregister();
+                } catch (IllegalStateException ex) {
+                    // Already unregistered
                 }
             }
-            setState(STATE_RESET_RECOVERY);
-            break;
-        case STATE_DONE:
-            logger.trace("BBB - Done");
-            statusQueue.enqueue(currentCSW);
-            setState(STATE_COMMAND_TRANSPORT);
-            break;
-        case STATE_RESET_RECOVERY:
-            logger.trace("BBB - Reset Recovery");
-            massStorageReset();
-            // clear feature HALT to bulk-in
-            clearEndpoint(bulkIn);
-            // clear feature HALT to bulk-out
-            clearEndpoint(bulkOut);
-            statusQueue.enqueue(currentCSW);
-            setState(STATE_COMMAND_TRANSPORT);
-            break;
+            registrations.clear();
         }
-    }
 
-    private void clearEndpoint(UsbEndpoint ep) throws UsbException {
-        StandardRequest.clearFeature(
-                usbDevice,
-                UsbConst.REQUESTTYPE_RECIPIENT_ENDPOINT,
-                UsbConst.FEATURE_SELECTOR_ENDPOINT_HALT,
-                ep.getUsbEndpointDescriptor().bEndpointAddress());
-    }
+        public void usbDeviceDetached(UsbDeviceEvent event) {
+            detach(transport.getUsbInterface());
+        }
 
-    public void massStorageReset() throws UsbException {
-        byte bmRequestType = UsbConst.REQUESTTYPE_TYPE_CLASS | UsbConst.REQUESTTYPE_RECIPIENT_INTERFACE | UsbConst.REQUESTTYPE_DIRECTION_OUT;
-        UsbControlIrp controlIrp = usbDevice.createUsbControlIrp(bmRequestType, REQUEST_MASS_STORAGE_RESET, (short) 0x0000, (short) 0);
-        usbDevice.syncSubmit(controlIrp);
-    }
+        public void errorEventOccurred(UsbDeviceErrorEvent event) {
+        }
 
-    public byte getMaxLUN() throws UsbException {
-        if (maxLUN == -1) {
-            byte bmRequestType = UsbConst.REQUESTTYPE_TYPE_CLASS | UsbConst.REQUESTTYPE_RECIPIENT_INTERFACE | UsbConst.REQUESTTYPE_DIRECTION_IN;
-            UsbControlIrp controlIrp = usbDevice.createUsbControlIrp(bmRequestType, REQUEST_GET_MAX_LUN, (short) 0x0000, (short) 0);
-            controlIrp.setData(rawCommandBuffer);
-            controlIrp.setLength(1);
-            usbDevice.syncSubmit(controlIrp);
-            maxLUN = rawCommandBuffer[0];
+        public void dataEventOccurred(UsbDeviceDataEvent event) {
         }
-        return maxLUN;
     }
 }
@@ -35,6 +35,7 @@ public class CommandBlockWrapper implements Frame {
     private byte cbLength;
     private byte[] cb;
     private byte[] data;
+    private int dataOffset;
     
     public void pull(FrameBuffer frameBuffer) {
         frameBuffer.setByteOrder(FrameBuffer.BO_LITTLE_ENDIAN);
@@ -150,6 +151,22 @@ public class CommandBlockWrapper implements Frame {
      * @param data the data to set
      */
     public void setData(byte[] data) {
+        setData(data, 0);
+    }
+
+    /**
+     * Sets the data phase buffer; the data phase transfers
+     * dataTransferLength bytes starting at dataOffset.
+     */
+    public void setData(byte[] data, int dataOffset) {
         this.data = data;
+        this.dataOffset = dataOffset;
+    }
+
+    /**
+     * @return the offset of the data phase in data
+     */
+    public int getDataOffset() {
+        return dataOffset;
     }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+/**
+ * Completion handle of a command block submitted to {@link BulkOnlyTransport}.
+ * Completed when the CSW carrying the same tag as the CBW is received.
+ * <p>
+ * Futures and their status wrappers are recycled by the transport.
+ * A caller that is done with the status may hand both back with
+ * {@link #release()}; neither may be used afterwards. Futures that are
+ * never released are simply left to the garbage collector.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class CommandFuture {
+
+    private BulkOnlyTransport transport;
+    private CommandBlockWrapper commandBlock;
+    private CommandStatusWrapper commandStatus;
+    private CommandListener listener;
+    private int tag;
+    private int priority;
+    private long deadline;
+    private long submitTime;
+    private boolean done;
+    private boolean released;
+
+    CommandFuture(BulkOnlyTransport transport) {
+        this.transport = transport;
+        commandStatus = new CommandStatusWrapper();
+    }
+
+    void reset(CommandBlockWrapper commandBlock, CommandListener listener, int priority, long deadline) {
+        this.commandBlock = commandBlock;
+        this.listener = listener;
+        this.priority = priority;
+        this.deadline = deadline;
+        submitTime = System.currentTimeMillis();
+        tag = commandBlock.getTag();
+        done = false;
+        released = false;
+    }
+
+    public CommandBlockWrapper getCommandBlock() {
+        return commandBlock;
+    }
+
+    public int getTag() {
+        return tag;
+    }
+
+    /**
+     * @return one of the CommandScheduler priorities
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the time in milliseconds by which the command should be
+     * dispatched, or 0 for none
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    long getSubmitTime() {
+        return submitTime;
+    }
+
+    /**
+     * The status wrapper owned by this future, filled by the transport.
+     */
+    CommandStatusWrapper getCommandStatus() {
+        return commandStatus;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Waits for the command status.
+     */
+    public synchronized CommandStatusWrapper get() throws InterruptedException {
+        while (!done) {
+            wait();
+        }
+        return commandStatus;
+    }
+
+    /**
+     * Waits for the command status at most timeout milliseconds.
+     * @return the status, or null if the command is still in flight
+     */
+    public synchronized CommandStatusWrapper get(long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (!done) {
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            wait(remaining);
+        }
+        return commandStatus;
+    }
+
+    /**
+     * Waits for the command status even if the thread is interrupted,
+     * since the command block and data buffer are in use until then.
+     * The interrupt status is restored before returning.
+     */
+    public CommandStatusWrapper getUninterruptibly() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return get();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns this future and its status wrapper to the transport's pool.
+     * Has no effect before the command is done.
+     */
+    public void release() {
+        synchronized (this) {
+            if (!done || released) {
+                return;
+            }
+            released = true;
+            commandBlock = null;
+            listener = null;
+        }
+        transport.recycle(this);
+    }
+
+    /**
+     * Completes the command as a phase error, without any data transferred.
+     */
+    void fail() {
+        commandStatus.setTag(tag);
+        commandStatus.setDataResidue(commandBlock.getDataTransferLength());
+        commandStatus.setStatus(CommandStatusWrapper.STATUS_PHASE_ERROR);
+        complete();
+    }
+
+    void complete() {
+        CommandListener l;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            l = listener;
+            notifyAll();
+        }
+        if (l != null) {
+            l.commandCompleted(this);
+        }
+    }
+}
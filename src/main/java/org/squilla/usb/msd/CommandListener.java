@@ -0,0 +1,27 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+/**
+ * Callback notified when a submitted command block completes.
+ * Called on the transport worker thread, so implementations must not block.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public interface CommandListener {
+
+    public void commandCompleted(CommandFuture future);
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+/**
+ * I/O scheduler stage between callers of {@link BulkOnlyTransport} and its
+ * worker. Decides which queued command goes on the bus next.
+ * Implementations are bounded, and must be safe for many producer threads
+ * and the single worker thread.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public interface CommandScheduler {
+
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_BULK = 2;
+
+    /**
+     * Queues the command without blocking.
+     * @return false if the scheduler is full or closed
+     */
+    public boolean offer(CommandFuture future);
+
+    /**
+     * Queues the command, waiting while the scheduler is full.
+     * @return false if the scheduler is closed
+     */
+    public boolean put(CommandFuture future) throws InterruptedException;
+
+    /**
+     * Waits for the next command to execute.
+     * @return the command, or null once the scheduler is closed
+     */
+    public CommandFuture take() throws InterruptedException;
+
+    /**
+     * @return the number of queued commands
+     */
+    public int size();
+
+    public int getCapacity();
+
+    /**
+     * Refuses further commands and wakes up all waiting threads.
+     * Queued commands are left to the transport to fail.
+     */
+    public void close();
+}
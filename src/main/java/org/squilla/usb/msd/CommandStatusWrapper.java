@@ -96,4 +96,14 @@ public class CommandStatusWrapper implements Frame {
     public void setStatus(byte status) {
         this.status = status;
     }
+
+    /**
+     * Copies every field of csw, including the signature.
+     */
+    void copy(CommandStatusWrapper csw) {
+        signature = csw.signature;
+        tag = csw.tag;
+        dataResidue = csw.dataResidue;
+        status = csw.status;
+    }
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+/**
+ * Scheduler with priorities, deadlines and an elevator for reads.
+ * <p>
+ * A command is dispatched only after every earlier queued command it
+ * depends on: reads may pass reads, reads and writes may pass each other
+ * unless their block ranges overlap, and any other command keeps its
+ * place. Among the commands free to go, one whose deadline has passed goes
+ * first; otherwise the highest priority wins, the LUNs holding commands of
+ * that priority take turns, and reads of equal priority are sorted by LBA
+ * in one direction (C-SCAN) from the last dispatched block. Commands without a deadline expire after a default time, so
+ * nothing starves.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class DeadlineCommandScheduler implements CommandScheduler {
+
+    public static final long DEFAULT_READ_EXPIRE = 500;
+    public static final long DEFAULT_WRITE_EXPIRE = 5000;
+    private static final int KIND_OTHER = 0;
+    private static final int KIND_READ = 1;
+    private static final int KIND_WRITE = 2;
+    private static final int MAX_LUN_COUNT = 16;
+    private CommandFuture[] queue;
+    private int[] kinds;
+    private int[] luns;
+    private long[] lbas;
+    private long[] ends;
+    private long[] expires;
+    private boolean[] eligible;
+    private long[] positions;
+    private int lastLUN;
+    private int count;
+    private long readExpire;
+    private long writeExpire;
+    private boolean closed;
+
+    /**
+     * @param capacity the number of commands that may be queued
+     */
+    public DeadlineCommandScheduler(int capacity) {
+        queue = new CommandFuture[capacity];
+        kinds = new int[capacity];
+        luns = new int[capacity];
+        lbas = new long[capacity];
+        ends = new long[capacity];
+        expires = new long[capacity];
+        eligible = new boolean[capacity];
+        positions = new long[MAX_LUN_COUNT];
+        readExpire = DEFAULT_READ_EXPIRE;
+        writeExpire = DEFAULT_WRITE_EXPIRE;
+    }
+
+    /**
+     * Sets the deadlines given to commands submitted without one.
+     */
+    public synchronized void setExpire(long readExpire, long writeExpire) {
+        this.readExpire = readExpire;
+        this.writeExpire = writeExpire;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return queue.length;
+    }
+
+    public synchronized boolean offer(CommandFuture future) {
+        if (closed || count >= queue.length) {
+            return false;
+        }
+        CommandBlockWrapper cbw = future.getCommandBlock();
+        byte[] cb = cbw.getCB();
+        int i = count;
+        queue[i] = future;
+        luns[i] = cbw.getLUN() & 0x0F;
+        switch (cb == null ? UsbSCSI.OPCODE_TEST_UNIT_READY : cb[0]) {
+        case UsbSCSI.OPCODE_READ_10:
+        case UsbSCSI.OPCODE_WRITE_10:
+            kinds[i] = cb[0] == UsbSCSI.OPCODE_READ_10 ? KIND_READ : KIND_WRITE;
+            lbas[i] = getInt32(cb, 2) & 0xFFFFFFFFL;
+            ends[i] = lbas[i] + (((cb[7] & 0xFF) << 8) | (cb[8] & 0xFF));
+            break;
+        case UsbSCSI.OPCODE_READ_16:
+        case UsbSCSI.OPCODE_WRITE_16:
+            kinds[i] = cb[0] == UsbSCSI.OPCODE_READ_16 ? KIND_READ : KIND_WRITE;
+            lbas[i] = ((long) getInt32(cb, 2) << 32) | (getInt32(cb, 6) & 0xFFFFFFFFL);
+            ends[i] = lbas[i] + (getInt32(cb, 10) & 0xFFFFFFFFL);
+            break;
+        default:
+            kinds[i] = KIND_OTHER;
+            lbas[i] = 0;
+            ends[i] = 0;
+            break;
+        }
+        long deadline = future.getDeadline();
+        if (deadline == 0) {
+            deadline = System.currentTimeMillis() + (kinds[i] == KIND_WRITE ? writeExpire : readExpire);
+        }
+        expires[i] = deadline;
+        count++;
+        notifyAll();
+        return true;
+    }
+
+    public synchronized boolean put(CommandFuture future) throws InterruptedException {
+        while (!closed && count >= queue.length) {
+            wait();
+        }
+        return offer(future);
+    }
+
+    public synchronized CommandFuture take() throws InterruptedException {
+        while (!closed && count == 0) {
+            wait();
+        }
+        if (closed) {
+            return null;
+        }
+        updateEligible();
+        int pick = pickExpired(System.currentTimeMillis());
+        if (pick < 0) {
+            pick = pickPriority();
+        }
+        if (kinds[pick] != KIND_OTHER) {
+            positions[luns[pick]] = ends[pick];
+        }
+        lastLUN = luns[pick];
+        CommandFuture future = queue[pick];
+        remove(pick);
+        notifyAll();
+        return future;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private void updateEligible() {
+        for (int i = 0; i < count; i++) {
+            eligible[i] = true;
+            for (int j = 0; j < i; j++) {
+                if (dependsOn(i, j)) {
+                    eligible[i] = false;
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean dependsOn(int i, int j) {
+        if (luns[i] != luns[j]) {
+            return false;
+        }
+        if (kinds[i] == KIND_OTHER || kinds[j] == KIND_OTHER) {
+            return true;
+        }
+        if (kinds[i] == KIND_READ && kinds[j] == KIND_READ) {
+            return false;
+        }
+        return lbas[i] < ends[j] && lbas[j] < ends[i];
+    }
+
+    private int pickExpired(long now) {
+        int pick = -1;
+        for (int i = 0; i < count; i++) {
+            if (eligible[i] && expires[i] <= now && (pick < 0 || expires[i] < expires[pick])) {
+                pick = i;
+            }
+        }
+        return pick;
+    }
+
+    private int pickPriority() {
+        // The highest priority; the first command is always eligible.
+        int priority = Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            if (eligible[i] && queue[i].getPriority() < priority) {
+                priority = queue[i].getPriority();
+            }
+        }
+        // The oldest command of that priority on the next LUN after the last one.
+        int pick = -1;
+        for (int i = 0; i < count; i++) {
+            if (!eligible[i] || queue[i].getPriority() != priority) {
+                continue;
+            }
+            if (pick < 0 || turn(luns[i]) < turn(luns[pick])) {
+                pick = i;
+            }
+        }
+        if (kinds[pick] != KIND_READ) {
+            return pick;
+        }
+        int lun = luns[pick];
+        long position = positions[lun];
+        int ahead = -1;
+        int lowest = -1;
+        for (int i = 0; i < count; i++) {
+            if (!eligible[i] || kinds[i] != KIND_READ || luns[i] != lun || queue[i].getPriority() != priority) {
+                continue;
+            }
+            if (lbas[i] >= position && (ahead < 0 || lbas[i] < lbas[ahead])) {
+                ahead = i;
+            }
+            if (lowest < 0 || lbas[i] < lbas[lowest]) {
+                lowest = i;
+            }
+        }
+        return ahead >= 0 ? ahead : lowest;
+    }
+
+    private int turn(int lun) {
+        return (lun - lastLUN - 1 + MAX_LUN_COUNT) % MAX_LUN_COUNT;
+    }
+
+    private void remove(int i) {
+        int tail = count - i - 1;
+        System.arraycopy(queue, i + 1, queue, i, tail);
+        System.arraycopy(kinds, i + 1, kinds, i, tail);
+        System.arraycopy(luns, i + 1, luns, i, tail);
+        System.arraycopy(lbas, i + 1, lbas, i, tail);
+        System.arraycopy(ends, i + 1, ends, i, tail);
+        System.arraycopy(expires, i + 1, expires, i, tail);
+        count--;
+        queue[count] = null;
+    }
+
+    private static int getInt32(byte[] cb, int offset) {
+        return ((cb[offset] & 0xFF) << 24)
+                | ((cb[offset + 1] & 0xFF) << 16)
+                | ((cb[offset + 2] & 0xFF) << 8)
+                | (cb[offset + 3] & 0xFF);
+    }
+}
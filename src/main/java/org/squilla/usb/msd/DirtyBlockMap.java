@@ -0,0 +1,190 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Blocks written in write-back mode but not yet sent to the device, sorted by LBA
+ * so that adjacent blocks can be flushed with a single command.
+ * Block buffers are recycled.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class DirtyBlockMap {
+
+    private int blockLength;
+    private TreeMap blocks;
+    private byte[][] freeBlocks;
+    private int freeCount;
+    private int removals;
+
+    public DirtyBlockMap(int blockLength, int poolSize) {
+        this.blockLength = blockLength;
+        blocks = new TreeMap();
+        freeBlocks = new byte[poolSize][];
+    }
+
+    public synchronized int size() {
+        return blocks.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return blocks.isEmpty();
+    }
+
+    public synchronized boolean contains(long lba) {
+        return blocks.containsKey(new Long(lba));
+    }
+
+    /**
+     * Copies length bytes from src into the dirty block at skip.
+     * A block not yet dirty is created from base, which holds its current content.
+     */
+    public synchronized void put(long lba, int skip, int length, ByteBuffer src, byte[] base, int baseOffset) {
+        Long key = new Long(lba);
+        byte[] block = (byte[]) blocks.get(key);
+        if (block == null) {
+            block = allocate();
+            if (skip != 0 || length != blockLength) {
+                System.arraycopy(base, baseOffset, block, 0, blockLength);
+            }
+            blocks.put(key, block);
+        }
+        src.get(block, skip, length);
+    }
+
+    /**
+     * Copies part of a dirty block into dst.
+     * @return false if the block is not dirty
+     */
+    public synchronized boolean read(long lba, int skip, int length, ByteBuffer dst) {
+        if (blocks.isEmpty()) {
+            return false;
+        }
+        byte[] block = (byte[]) blocks.get(new Long(lba));
+        if (block == null) {
+            return false;
+        }
+        dst.put(block, skip, length);
+        return true;
+    }
+
+    /**
+     * Overwrites blocks read from the device with their dirty copies.
+     */
+    public synchronized void overlay(long lba, int count, byte[] dst, int offset) {
+        if (blocks.isEmpty()) {
+            return;
+        }
+        SortedMap range = blocks.subMap(new Long(lba), new Long(lba + count));
+        for (Iterator i = range.entrySet().iterator(); i.hasNext();) {
+            Map.Entry entry = (Map.Entry) i.next();
+            long dirtyLBA = ((Long) entry.getKey()).longValue();
+            System.arraycopy(entry.getValue(), 0, dst, offset + (int) (dirtyLBA - lba) * blockLength, blockLength);
+        }
+    }
+
+    /**
+     * Overwrites blocks read from the device with their dirty copies,
+     * unless blocks were removed since {@link #getRemovalCount()} returned removalCount.
+     * A removed block may have been flushed after the device was read,
+     * so the data read is then stale and has to be read again.
+     * @return false if blocks were removed in the meantime
+     */
+    public synchronized boolean overlay(long lba, int count, byte[] dst, int offset, int removalCount) {
+        if (removals != removalCount) {
+            return false;
+        }
+        overlay(lba, count, dst, offset);
+        return true;
+    }
+
+    /**
+     * @return a counter that changes whenever dirty blocks are removed
+     */
+    public synchronized int getRemovalCount() {
+        return removals;
+    }
+
+    /**
+     * @return true if any block of the range is dirty
+     */
+    public synchronized boolean contains(long lba, int count) {
+        if (blocks.isEmpty()) {
+            return false;
+        }
+        return !blocks.subMap(new Long(lba), new Long(lba + count)).isEmpty();
+    }
+
+    /**
+     * Copies the first run of consecutive dirty blocks into dst.
+     * The blocks stay dirty until {@link #remove(long, int)}.
+     * @param lba receives the first LBA of the run
+     * @return the number of blocks copied
+     */
+    public synchronized int peekRun(int maxBlocks, byte[] dst, long[] lba) {
+        int count = 0;
+        long expected = 0;
+        for (Iterator i = blocks.entrySet().iterator(); i.hasNext() && count < maxBlocks;) {
+            Map.Entry entry = (Map.Entry) i.next();
+            long dirtyLBA = ((Long) entry.getKey()).longValue();
+            if (count == 0) {
+                lba[0] = dirtyLBA;
+            } else if (dirtyLBA != expected) {
+                break;
+            }
+            System.arraycopy(entry.getValue(), 0, dst, count * blockLength, blockLength);
+            expected = dirtyLBA + 1;
+            count++;
+        }
+        return count;
+    }
+
+    public synchronized void remove(long lba, int count) {
+        if (blocks.isEmpty()) {
+            return;
+        }
+        SortedMap range = blocks.subMap(new Long(lba), new Long(lba + count));
+        if (range.isEmpty()) {
+            return;
+        }
+        for (Iterator i = range.values().iterator(); i.hasNext();) {
+            recycle((byte[]) i.next());
+            i.remove();
+        }
+        removals++;
+    }
+
+    private byte[] allocate() {
+        if (freeCount > 0) {
+            byte[] block = freeBlocks[--freeCount];
+            freeBlocks[freeCount] = null;
+            return block;
+        }
+        return new byte[blockLength];
+    }
+
+    private void recycle(byte[] block) {
+        if (freeCount < freeBlocks.length) {
+            freeBlocks[freeCount++] = block;
+        }
+    }
+}
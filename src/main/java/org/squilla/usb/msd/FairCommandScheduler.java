@@ -0,0 +1,193 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+/**
+ * Scheduler shared by the logical units of one transport.
+ * Every LUN has a FIFO per priority, and the worker takes commands from the
+ * LUNs by deficit round robin weighted by transfer length, so a long
+ * sequential transfer on one LUN can not starve small commands on another.
+ * Within a LUN the highest priority goes first unless a command has passed
+ * its deadline. Commands without a deadline expire after a default time,
+ * so lower priorities do not starve either.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class FairCommandScheduler implements CommandScheduler {
+
+    public static final int MAX_LUN_COUNT = 16;
+    /** Bytes a LUN may transfer per round. */
+    public static final int DEFAULT_QUANTUM = 64 * 1024;
+    public static final long DEFAULT_EXPIRE = 5000;
+    private static final int PRIORITY_COUNT = 3;
+    /** Cost charged for every command besides its data. */
+    private static final int COMMAND_COST = 512;
+    private CommandFuture[][] queues;
+    private long[][] expires;
+    private int[] heads;
+    private int[] counts;
+    private int[] lunCounts;
+    private int[] deficits;
+    private int capacity;
+    private int quantum;
+    private long expire;
+    private int current;
+    private boolean fresh;
+    private int count;
+    private boolean closed;
+
+    /**
+     * @param capacity the number of commands queued over all LUNs
+     */
+    public FairCommandScheduler(int capacity) {
+        this.capacity = capacity;
+        queues = new CommandFuture[MAX_LUN_COUNT * PRIORITY_COUNT][];
+        expires = new long[MAX_LUN_COUNT * PRIORITY_COUNT][];
+        heads = new int[MAX_LUN_COUNT * PRIORITY_COUNT];
+        counts = new int[MAX_LUN_COUNT * PRIORITY_COUNT];
+        lunCounts = new int[MAX_LUN_COUNT];
+        deficits = new int[MAX_LUN_COUNT];
+        quantum = DEFAULT_QUANTUM;
+        expire = DEFAULT_EXPIRE;
+        fresh = true;
+    }
+
+    public synchronized void setQuantum(int quantum) {
+        if (quantum <= 0) {
+            throw new IllegalArgumentException("quantum: " + quantum);
+        }
+        this.quantum = quantum;
+    }
+
+    /**
+     * Sets the deadline given to commands submitted without one.
+     */
+    public synchronized void setExpire(long expire) {
+        this.expire = expire;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized int size(int lun) {
+        return lunCounts[lun & 0x0F];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized boolean offer(CommandFuture future) {
+        if (closed || count >= capacity) {
+            return false;
+        }
+        int lun = future.getCommandBlock().getLUN() & 0x0F;
+        int priority = Math.max(PRIORITY_INTERACTIVE, Math.min(PRIORITY_BULK, future.getPriority()));
+        int q = lun * PRIORITY_COUNT + priority;
+        CommandFuture[] queue = queues[q];
+        if (queue == null) {
+            // Most devices use LUN 0 and one or two priorities only.
+            queue = new CommandFuture[capacity];
+            queues[q] = queue;
+            expires[q] = new long[capacity];
+        }
+        int tail = (heads[q] + counts[q]) % queue.length;
+        queue[tail] = future;
+        long deadline = future.getDeadline();
+        expires[q][tail] = deadline != 0 ? deadline : System.currentTimeMillis() + expire;
+        counts[q]++;
+        lunCounts[lun]++;
+        count++;
+        notifyAll();
+        return true;
+    }
+
+    public synchronized boolean put(CommandFuture future) throws InterruptedException {
+        while (!closed && count >= capacity) {
+            wait();
+        }
+        return offer(future);
+    }
+
+    public synchronized CommandFuture take() throws InterruptedException {
+        while (!closed && count == 0) {
+            wait();
+        }
+        if (closed) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        while (true) {
+            if (lunCounts[current] == 0) {
+                deficits[current] = 0;
+                next();
+                continue;
+            }
+            if (fresh) {
+                deficits[current] += quantum;
+                fresh = false;
+            }
+            int q = select(current, now);
+            CommandFuture[] queue = queues[q];
+            CommandFuture future = queue[heads[q]];
+            int cost = future.getCommandBlock().getDataTransferLength() + COMMAND_COST;
+            if (cost <= deficits[current]) {
+                deficits[current] -= cost;
+                queue[heads[q]] = null;
+                heads[q] = (heads[q] + 1) % queue.length;
+                counts[q]--;
+                lunCounts[current]--;
+                count--;
+                notifyAll();
+                return future;
+            }
+            next();
+        }
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Returns the queue of the LUN whose head goes next: the one that
+     * expired first, or else the highest priority.
+     */
+    private int select(int lun, long now) {
+        int pick = -1;
+        int expired = -1;
+        for (int q = lun * PRIORITY_COUNT; q < (lun + 1) * PRIORITY_COUNT; q++) {
+            if (counts[q] == 0) {
+                continue;
+            }
+            if (pick < 0) {
+                pick = q;
+            }
+            long head = expires[q][heads[q]];
+            if (head <= now && (expired < 0 || head < expires[expired][heads[expired]])) {
+                expired = q;
+            }
+        }
+        return expired >= 0 ? expired : pick;
+    }
+
+    private void next() {
+        current = (current + 1) % MAX_LUN_COUNT;
+        fresh = true;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+import org.squilla.usb.LatencyHistogram;
+
+/**
+ * Counters of one {@link BulkOnlyTransport}, registered as a service next to
+ * its {@link UsbSCSI}. Updated by the transport worker only, so recording is
+ * an uncontended lock and a few additions.
+ * Latencies are measured with the millisecond clock.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class TransportMetrics {
+
+    private LatencyHistogram cbwLatency;
+    private LatencyHistogram dataLatency;
+    private LatencyHistogram cswLatency;
+    private LatencyHistogram commandLatency;
+    private long[] opcodeCounts;
+    private long commandCount;
+    private long failedCount;
+    private long bytesIn;
+    private long bytesOut;
+    private int queueDepth;
+    private int maxQueueDepth;
+    private long resetCount;
+    private long stallCount;
+    private long clearHaltCount;
+    private long startTime;
+
+    public TransportMetrics() {
+        cbwLatency = new LatencyHistogram();
+        dataLatency = new LatencyHistogram();
+        cswLatency = new LatencyHistogram();
+        commandLatency = new LatencyHistogram();
+        opcodeCounts = new long[256];
+        startTime = System.currentTimeMillis();
+    }
+
+    synchronized void commandStarted(int opcode, int queueDepth) {
+        opcodeCounts[opcode & 0xFF]++;
+        commandCount++;
+        this.queueDepth = queueDepth;
+        if (queueDepth > maxQueueDepth) {
+            maxQueueDepth = queueDepth;
+        }
+    }
+
+    synchronized void commandCompleted(int status, long submitTime) {
+        if (status != CommandStatusWrapper.STATUS_COMMAND_PASSED) {
+            failedCount++;
+        }
+        commandLatency.record(System.currentTimeMillis() - submitTime);
+    }
+
+    synchronized void dataTransferred(boolean in, int length) {
+        if (in) {
+            bytesIn += length;
+        } else {
+            bytesOut += length;
+        }
+    }
+
+    synchronized void resetRecovered() {
+        resetCount++;
+    }
+
+    synchronized void stalled() {
+        stallCount++;
+    }
+
+    synchronized void haltCleared() {
+        clearHaltCount++;
+    }
+
+    /**
+     * @return latencies of the command phase
+     */
+    public LatencyHistogram getCbwLatency() {
+        return cbwLatency;
+    }
+
+    /**
+     * @return latencies of the data phase
+     */
+    public LatencyHistogram getDataLatency() {
+        return dataLatency;
+    }
+
+    /**
+     * @return latencies of the status phase
+     */
+    public LatencyHistogram getCswLatency() {
+        return cswLatency;
+    }
+
+    /**
+     * @return latencies from submission to completion, queueing included
+     */
+    public LatencyHistogram getCommandLatency() {
+        return commandLatency;
+    }
+
+    public synchronized long getOpcodeCount(int opcode) {
+        return opcodeCounts[opcode & 0xFF];
+    }
+
+    public synchronized long getCommandCount() {
+        return commandCount;
+    }
+
+    /**
+     * @return commands completed with a status other than passed
+     */
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    public synchronized long getBytesIn() {
+        return bytesIn;
+    }
+
+    public synchronized long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * @return commands left queued when the last command was dispatched
+     */
+    public synchronized int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public synchronized long getResetCount() {
+        return resetCount;
+    }
+
+    public synchronized long getStallCount() {
+        return stallCount;
+    }
+
+    public synchronized long getClearHaltCount() {
+        return clearHaltCount;
+    }
+
+    public synchronized long getStartTime() {
+        return startTime;
+    }
+
+    public synchronized void clear() {
+        cbwLatency.clear();
+        dataLatency.clear();
+        cswLatency.clear();
+        commandLatency.clear();
+        for (int i = 0; i < opcodeCounts.length; i++) {
+            opcodeCounts[i] = 0;
+        }
+        commandCount = 0;
+        failedCount = 0;
+        bytesIn = 0;
+        bytesOut = 0;
+        maxQueueDepth = 0;
+        resetCount = 0;
+        stallCount = 0;
+        clearHaltCount = 0;
+        startTime = System.currentTimeMillis();
+    }
+
+    public synchronized String toString() {
+        return "commands=" + commandCount + " failed=" + failedCount
+                + " in=" + bytesIn + " out=" + bytesOut
+                + " queue=" + queueDepth + "/" + maxQueueDepth
+                + " resets=" + resetCount + " stalls=" + stallCount + " clearHalts=" + clearHaltCount
+                + " cbw[" + cbwLatency + "] data[" + dataLatency + "] csw[" + cswLatency + "]";
+    }
+}
@@ -0,0 +1,606 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Timer;
+import java.util.TimerTask;
+import net.sf.microlog.core.Logger;
+import net.sf.microlog.core.LoggerFactory;
+
+/**
+ * {@link BlockDevice} over {@link UsbSCSI}.
+ * Capacity and block length are probed once, on first use.
+ * Whole-block transfers to and from heap buffers use the buffer's
+ * backing array for the data phase; direct buffers are copied through
+ * a per-thread transfer buffer since JSR-80 IRPs only take arrays.
+ * Devices larger than 2 TiB (with 512 byte blocks) are driven with
+ * READ(16)/WRITE(16), which also lifts the 65535 block limit per command.
+ * <p>
+ * With a {@link BlockCache} set, cached blocks are served without touching
+ * the bus and sequential reads grow a read-ahead window up to the max transfer length.
+ * <p>
+ * In write-back mode writes are buffered as dirty blocks and flushed, with
+ * adjacent blocks merged into single WRITE(10) commands, once the dirty size
+ * or age exceeds its limit, or on {@link #sync()}. Buffered data is lost if
+ * the device is unplugged before it is flushed.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class UsbBlockDevice implements BlockDevice {
+
+    public static final int DEFAULT_MAX_TRANSFER_LENGTH = 64 * 1024;
+    public static final int DEFAULT_WRITE_BACK_SIZE = 1024 * 1024;
+    public static final long DEFAULT_WRITE_BACK_DELAY = 1000;
+    public static final int DEFAULT_STREAM_DEPTH = 4;
+    private static final int SENSE_LENGTH = 18;
+    private static final int READY_RETRY = 3;
+    private static final int SENSE_KEY_UNIT_ATTENTION = 0x06;
+    private static final int SENSE_KEY_ILLEGAL_REQUEST = 0x05;
+    private static final int MIN_READ_AHEAD_BLOCKS = 8;
+    private UsbSCSI usbSCSI;
+    private boolean probed;
+    private int blockLength;
+    private long blockCount;
+    private boolean command16;
+    private int maxTransferLength;
+    private int maxTransferBlocks;
+    private ThreadLocal transferBuffers;
+    private BlockCache blockCache;
+    private long nextReadLBA;
+    private int readAheadBlocks;
+    private boolean writeBack;
+    private int writeBackSize;
+    private long writeBackDelay;
+    private DirtyBlockMap dirtyBlocks;
+    private Object flushLock;
+    private Timer flushTimer;
+    private TimerTask flushTask;
+    private boolean synchronizeCacheSupported;
+    private Logger logger = LoggerFactory.getLogger(UsbBlockDevice.class);
+
+    public UsbBlockDevice(UsbSCSI usbSCSI) {
+        this.usbSCSI = usbSCSI;
+        maxTransferLength = DEFAULT_MAX_TRANSFER_LENGTH;
+        transferBuffers = new ThreadLocal();
+        writeBackSize = DEFAULT_WRITE_BACK_SIZE;
+        writeBackDelay = DEFAULT_WRITE_BACK_DELAY;
+        flushLock = new Object();
+        synchronizeCacheSupported = true;
+    }
+
+    public UsbSCSI getUsbSCSI() {
+        return usbSCSI;
+    }
+
+    public synchronized BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * @param blockCache the cache to use, or null to disable caching
+     */
+    public synchronized void setBlockCache(BlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+
+    public synchronized boolean isWriteBack() {
+        return writeBack;
+    }
+
+    /**
+     * Switches between write-back and write-through.
+     * Blocks left dirty by write-back are sent by the background flush;
+     * call {@link #flush()} to send them at once.
+     */
+    public synchronized void setWriteBack(boolean writeBack) {
+        this.writeBack = writeBack;
+        if (!writeBack && isProbed() && !dirtyBlocks.isEmpty()) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * @param writeBackSize the dirty size in bytes which triggers a flush
+     * @param writeBackDelay the time in milliseconds a block may stay dirty
+     */
+    public synchronized void setWriteBackLimit(int writeBackSize, long writeBackDelay) {
+        this.writeBackSize = writeBackSize;
+        this.writeBackDelay = writeBackDelay;
+    }
+
+    /**
+     * Flushes dirty blocks and stops the flush timer.
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            synchronized (this) {
+                if (flushTimer != null) {
+                    flushTimer.cancel();
+                    flushTimer = null;
+                    flushTask = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the cache if it is usable for this device, revalidated against transport resets.
+     */
+    private synchronized BlockCache getValidCache() {
+        if (blockCache == null || !blockCache.init(blockLength)) {
+            return null;
+        }
+        blockCache.validate(usbSCSI.getTransport().getResetCount());
+        return blockCache;
+    }
+
+    /**
+     * Computes how many blocks to fetch for a miss at lba, growing the
+     * read-ahead window while reads stay sequential.
+     */
+    private synchronized int readAhead(long lba, int needed, int maxBlocks) {
+        if (lba == nextReadLBA) {
+            readAheadBlocks = Math.min(maxBlocks, Math.max(MIN_READ_AHEAD_BLOCKS, readAheadBlocks * 2));
+        } else {
+            readAheadBlocks = 0;
+        }
+        long available = blockCount - lba;
+        return (int) Math.min(available, Math.max(needed, readAheadBlocks));
+    }
+
+    /**
+     * @param maxTransferLength the largest data phase in bytes of a single command
+     */
+    public synchronized void setMaxTransferLength(int maxTransferLength) {
+        this.maxTransferLength = maxTransferLength;
+        if (probed) {
+            updateMaxTransferBlocks();
+        }
+    }
+
+    public synchronized int getMaxTransferLength() {
+        return maxTransferLength;
+    }
+
+    public int getBlockLength() throws IOException {
+        probe();
+        return blockLength;
+    }
+
+    public long getBlockCount() throws IOException {
+        probe();
+        return blockCount;
+    }
+
+    public long getSize() throws IOException {
+        probe();
+        return blockCount * blockLength;
+    }
+
+    protected synchronized void probe() throws IOException {
+        if (probed) {
+            return;
+        }
+
+        byte[] buffer = new byte[SENSE_LENGTH];
+        for (int i = 0; i < READY_RETRY; i++) {
+            if (usbSCSI.testUnitReady((byte) 0) == CommandStatusWrapper.STATUS_COMMAND_PASSED) {
+                break;
+            }
+            // Clear unit attention
+            usbSCSI.requestSense((byte) SENSE_LENGTH, (byte) 0, buffer);
+        }
+
+        int status = usbSCSI.readCapacity(false, 0, (byte) 0, (byte) 0, buffer);
+        checkStatus(status, UsbSCSI.OPCODE_READ_CAPACITY);
+        long lastLBA = getInt32(buffer, 0) & 0xFFFFFFFFL;
+        blockLength = getInt32(buffer, 4);
+        if (lastLBA == 0xFFFFFFFFL) {
+            buffer = new byte[UsbSCSI.READ_CAPACITY_16_LENGTH];
+            status = usbSCSI.readCapacity16(buffer.length, (byte) 0, buffer);
+            checkStatus(status, UsbSCSI.OPCODE_SERVICE_ACTION_IN_16);
+            lastLBA = ((long) getInt32(buffer, 0) << 32) | (getInt32(buffer, 4) & 0xFFFFFFFFL);
+            blockLength = getInt32(buffer, 8);
+            command16 = true;
+        }
+        if (blockLength <= 0) {
+            throw new IOException("Invalid block length: " + blockLength);
+        }
+        blockCount = lastLBA + 1;
+        usbSCSI.setBlockLength(blockLength);
+        usbSCSI.setCommand16(command16);
+        updateMaxTransferBlocks();
+        dirtyBlocks = new DirtyBlockMap(blockLength, maxTransferBlocks);
+        probed = true;
+    }
+
+    private void updateMaxTransferBlocks() {
+        int limit = command16 ? Integer.MAX_VALUE : 0xFFFF;
+        maxTransferBlocks = Math.max(1, Math.min(limit, maxTransferLength / blockLength));
+    }
+
+    private byte[] getTransferBuffer() {
+        int size;
+        synchronized (this) {
+            size = maxTransferBlocks * blockLength;
+        }
+        byte[] buffer = (byte[]) transferBuffers.get();
+        if (buffer == null || buffer.length < size) {
+            buffer = new byte[size];
+            transferBuffers.set(buffer);
+        }
+        return buffer;
+    }
+
+    public void read(long offset, ByteBuffer dst) throws IOException {
+        int remaining = dst.remaining();
+        checkRange(offset, remaining);
+        byte[] buffer = getTransferBuffer();
+        int maxBlocks = buffer.length / blockLength;
+        BlockCache cache = getValidCache();
+        int lun = usbSCSI.getLogicalUnitNumber();
+        long lba = offset / blockLength;
+        int skip = (int) (offset % blockLength);
+        while (remaining > 0) {
+            int blockRemaining = Math.min(blockLength - skip, remaining);
+            if (dirtyBlocks.read(lba, skip, blockRemaining, dst)) {
+                lba++;
+                skip = 0;
+                remaining -= blockRemaining;
+                continue;
+            }
+            if (cache != null) {
+                int length = blockRemaining;
+                if (cache.read(lun, lba, skip, length, dst)) {
+                    lba++;
+                    skip = 0;
+                    remaining -= length;
+                    continue;
+                }
+            }
+            int needed = Math.min(maxBlocks, (skip + remaining + blockLength - 1) / blockLength);
+            int blocks = needed;
+            if (cache != null) {
+                blocks = readAhead(lba, needed, maxBlocks);
+            }
+            int generation = cache != null ? cache.getGeneration() : 0;
+            int direct = Math.min(needed, remaining / blockLength);
+            if (skip == 0 && direct > 0 && blocks == needed && dst.hasArray()) {
+                // Whole blocks without read-ahead land directly in the caller's array.
+                byte[] array = dst.array();
+                int arrayOffset = dst.arrayOffset() + dst.position();
+                readBlocks(lba, direct, array, arrayOffset);
+                if (cache != null) {
+                    cache.fill(generation, lun, lba, direct, array, arrayOffset);
+                }
+                int length = direct * blockLength;
+                dst.position(dst.position() + length);
+                lba += direct;
+                remaining -= length;
+                continue;
+            }
+            readBlocks(lba, blocks, buffer, 0);
+            if (cache != null) {
+                cache.fill(generation, lun, lba, blocks, buffer, 0);
+            }
+            int length = Math.min(needed * blockLength - skip, remaining);
+            dst.put(buffer, skip, length);
+            lba += needed;
+            skip = 0;
+            remaining -= length;
+        }
+        synchronized (this) {
+            nextReadLBA = lba;
+        }
+    }
+
+    public void write(long offset, ByteBuffer src) throws IOException {
+        if (isWriteBack()) {
+            writeBack(offset, src);
+        } else {
+            writeThrough(offset, src);
+        }
+    }
+
+    public void writeThrough(long offset, ByteBuffer src) throws IOException {
+        int remaining = src.remaining();
+        checkRange(offset, remaining);
+        byte[] buffer = getTransferBuffer();
+        int maxBlocks = buffer.length / blockLength;
+        BlockCache cache = getValidCache();
+        int lun = usbSCSI.getLogicalUnitNumber();
+        long lba = offset / blockLength;
+        int skip = (int) (offset % blockLength);
+        while (remaining > 0) {
+            if (skip == 0 && remaining >= blockLength && src.hasArray()) {
+                // Whole blocks go out directly from the caller's array.
+                int blocks = Math.min(maxBlocks, remaining / blockLength);
+                int length = blocks * blockLength;
+                byte[] array = src.array();
+                int arrayOffset = src.arrayOffset() + src.position();
+                synchronized (flushLock) {
+                    if (cache != null) {
+                        cache.invalidate(lun, lba, blocks);
+                    }
+                    writeBlocks(lba, blocks, array, arrayOffset);
+                    dirtyBlocks.remove(lba, blocks);
+                    if (cache != null) {
+                        cache.write(lun, lba, blocks, array, arrayOffset);
+                    }
+                }
+                src.position(src.position() + length);
+                lba += blocks;
+                remaining -= length;
+                continue;
+            }
+            int blocks = Math.min(maxBlocks, (skip + remaining + blockLength - 1) / blockLength);
+            int length = Math.min(blocks * blockLength - skip, remaining);
+            int tail = (skip + length) % blockLength;
+            synchronized (flushLock) {
+                if (skip != 0 || (blocks == 1 && tail != 0)) {
+                    // Read-modify-write the partial head block
+                    readBlocks(lba, 1, buffer, 0);
+                }
+                if (blocks > 1 && tail != 0) {
+                    // Read-modify-write the partial tail block
+                    readBlocks(lba + blocks - 1, 1, buffer, (blocks - 1) * blockLength);
+                }
+                src.get(buffer, skip, length);
+                if (cache != null) {
+                    // Never leave a stale copy behind, even if the write fails.
+                    cache.invalidate(lun, lba, blocks);
+                }
+                writeBlocks(lba, blocks, buffer, 0);
+                // The device now holds the newest data of these blocks.
+                dirtyBlocks.remove(lba, blocks);
+                // Still under the lock, so the cache follows the device's write order.
+                if (cache != null) {
+                    cache.write(lun, lba, blocks, buffer, 0);
+                }
+            }
+            lba += blocks;
+            skip = 0;
+            remaining -= length;
+        }
+    }
+
+    private void writeBack(long offset, ByteBuffer src) throws IOException {
+        int remaining = src.remaining();
+        checkRange(offset, remaining);
+        byte[] buffer = getTransferBuffer();
+        BlockCache cache = getValidCache();
+        int lun = usbSCSI.getLogicalUnitNumber();
+        long lba = offset / blockLength;
+        int skip = (int) (offset % blockLength);
+        synchronized (flushLock) {
+            while (remaining > 0) {
+                int length = Math.min(blockLength - skip, remaining);
+                if ((skip != 0 || length != blockLength) && !dirtyBlocks.contains(lba)) {
+                    // Partial block; merge with the current content.
+                    readBlocks(lba, 1, buffer, 0);
+                }
+                if (cache != null) {
+                    cache.invalidate(lun, lba, 1);
+                }
+                dirtyBlocks.put(lba, skip, length, src, buffer, 0);
+                lba++;
+                skip = 0;
+                remaining -= length;
+            }
+        }
+
+        int dirtySize = dirtyBlocks.size() * blockLength;
+        synchronized (this) {
+            if (dirtySize < writeBackSize) {
+                scheduleFlush();
+                return;
+            }
+        }
+        flush();
+    }
+
+    private void scheduleFlush() {
+        if (flushTask != null) {
+            return;
+        }
+        if (flushTimer == null) {
+            flushTimer = new Timer(true);
+        }
+        flushTask = new TimerTask() {
+
+            public void run() {
+                synchronized (UsbBlockDevice.this) {
+                    flushTask = null;
+                }
+                // Background flushes must not delay interactive reads.
+                usbSCSI.setPriority(CommandScheduler.PRIORITY_BULK);
+                try {
+                    flush();
+                } catch (IOException ex) {
+                    logger.warn(ex);
+                }
+            }
+        };
+        flushTimer.schedule(flushTask, writeBackDelay);
+    }
+
+    /**
+     * Sends every dirty block to the device, merging adjacent blocks.
+     */
+    public void flush() throws IOException {
+        if (!isProbed() || dirtyBlocks.isEmpty()) {
+            return;
+        }
+        byte[] buffer = getTransferBuffer();
+        int maxBlocks = buffer.length / blockLength;
+        BlockCache cache = getValidCache();
+        int lun = usbSCSI.getLogicalUnitNumber();
+        long[] lba = new long[1];
+        synchronized (flushLock) {
+            int blocks;
+            while ((blocks = dirtyBlocks.peekRun(maxBlocks, buffer, lba)) > 0) {
+                writeBlocks(lba[0], blocks, buffer, 0);
+                if (cache != null) {
+                    cache.write(lun, lba[0], blocks, buffer, 0);
+                }
+                dirtyBlocks.remove(lba[0], blocks);
+            }
+        }
+    }
+
+    public void sync() throws IOException {
+        flush();
+        if (!isProbed()) {
+            return;
+        }
+        synchronized (this) {
+            if (!synchronizeCacheSupported) {
+                return;
+            }
+        }
+        for (int i = 0; i < READY_RETRY; i++) {
+            int status = usbSCSI.synchronizeCache10(false, 0, (short) 0, (byte) 0);
+            if (status != CommandStatusWrapper.STATUS_COMMAND_FAILED) {
+                checkStatus(status, UsbSCSI.OPCODE_SYNCHRONIZE_CACHE_10);
+                return;
+            }
+            byte[] sense = new byte[SENSE_LENGTH];
+            usbSCSI.requestSense((byte) SENSE_LENGTH, (byte) 0, sense);
+            int senseKey = sense[2] & 0x0F;
+            if (senseKey == SENSE_KEY_ILLEGAL_REQUEST) {
+                logger.debug("SYNCHRONIZE CACHE is not supported");
+                synchronized (this) {
+                    synchronizeCacheSupported = false;
+                }
+                return;
+            }
+            if (senseKey != SENSE_KEY_UNIT_ATTENTION) {
+                throw new IOException("SYNCHRONIZE CACHE failed: sense key 0x" + Integer.toHexString(senseKey));
+            }
+            // Unit attention is reported once; try again.
+        }
+        throw new IOException("SYNCHRONIZE CACHE failed: unit attention");
+    }
+
+    /**
+     * Opens a sequential reader over length bytes from offset,
+     * with the default number of transfers of the maximum transfer length in flight.
+     */
+    public BlockStreamReader openStream(long offset, long length) throws IOException {
+        return openStream(offset, length, getMaxTransferLength(), DEFAULT_STREAM_DEPTH);
+    }
+
+    /**
+     * Opens a sequential reader over length bytes from offset
+     * that keeps depth transfers of bufferSize bytes in flight.
+     * The reader bypasses the block cache.
+     */
+    public BlockStreamReader openStream(long offset, long length, int bufferSize, int depth) throws IOException {
+        probe();
+        if (offset < 0 || length < 0 || offset + length > blockCount * blockLength) {
+            throw new IOException("Out of range: offset=" + offset + ", length=" + length);
+        }
+        return new BlockStreamReader(this, offset, length, bufferSize, depth);
+    }
+
+    boolean isDirty(long lba, int blocks) {
+        return dirtyBlocks.contains(lba, blocks);
+    }
+
+    int getDirtyRemovalCount() {
+        return dirtyBlocks.getRemovalCount();
+    }
+
+    /**
+     * @return false if the blocks have to be read again
+     * @see DirtyBlockMap#overlay(long, int, byte[], int, int)
+     */
+    boolean overlayDirty(long lba, int blocks, byte[] buffer, int offset, boolean dirty, int removals) {
+        if (!dirty) {
+            dirtyBlocks.overlay(lba, blocks, buffer, offset);
+            return true;
+        }
+        return dirtyBlocks.overlay(lba, blocks, buffer, offset, removals);
+    }
+
+    private synchronized boolean isProbed() {
+        return probed;
+    }
+
+    /**
+     * Reads blocks into buffer at offset, with dirty blocks overlaid.
+     */
+    void readBlocks(long lba, int blocks, byte[] buffer, int offset) throws IOException {
+        while (true) {
+            // Blocks dirty now may be flushed and dropped from the map while the
+            // READ is in flight; in that case the READ may predate the WRITE.
+            boolean dirty = dirtyBlocks.contains(lba, blocks);
+            int removals = dirtyBlocks.getRemovalCount();
+            readDevice(lba, blocks, buffer, offset);
+            if (!dirty) {
+                dirtyBlocks.overlay(lba, blocks, buffer, offset);
+                return;
+            }
+            if (dirtyBlocks.overlay(lba, blocks, buffer, offset, removals)) {
+                return;
+            }
+        }
+    }
+
+    private void readDevice(long lba, int blocks, byte[] buffer, int offset) throws IOException {
+        if (command16) {
+            int status = usbSCSI.read16(false, false, lba, blocks, (byte) 0, buffer, offset);
+            checkStatus(status, UsbSCSI.OPCODE_READ_16);
+        } else {
+            int status = usbSCSI.read10(false, false, false, (int) lba, (short) blocks, (byte) 0, buffer, offset);
+            checkStatus(status, UsbSCSI.OPCODE_READ_10);
+        }
+    }
+
+    private void writeBlocks(long lba, int blocks, byte[] buffer, int offset) throws IOException {
+        if (command16) {
+            int status = usbSCSI.write16(false, false, lba, blocks, (byte) 0, buffer, offset);
+            checkStatus(status, UsbSCSI.OPCODE_WRITE_16);
+        } else {
+            int status = usbSCSI.write10(false, false, false, false, (int) lba, (short) blocks, (byte) 0, buffer, offset);
+            checkStatus(status, UsbSCSI.OPCODE_WRITE_10);
+        }
+    }
+
+    private void checkRange(long offset, int length) throws IOException {
+        probe();
+        if (offset < 0 || offset + length > blockCount * blockLength) {
+            throw new IOException("Out of range: offset=" + offset + ", length=" + length);
+        }
+    }
+
+    private static void checkStatus(int status, byte opcode) throws IOException {
+        if (status != CommandStatusWrapper.STATUS_COMMAND_PASSED) {
+            throw new IOException("SCSI command 0x" + Integer.toHexString(opcode & 0xFF) + " failed: status " + status);
+        }
+    }
+
+    private static int getInt32(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24) |
+                ((buffer[offset + 1] & 0xFF) << 16) |
+                ((buffer[offset + 2] & 0xFF) << 8) |
+                (buffer[offset + 3] & 0xFF);
+    }
+}
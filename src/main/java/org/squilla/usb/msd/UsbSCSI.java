@@ -15,9 +15,10 @@
  */
 package org.squilla.usb.msd;
 
-import org.squilla.io.ByteUtil;
-
 /**
+ * SCSI transparent command set over Bulk-Only Transport.
+ * Methods may be called from several threads at once; every thread builds
+ * its commands in its own command block, so no call allocates.
  *
  * @author Shotaro Uchida <fantom@xmaker.mx>
  */
@@ -30,17 +31,35 @@ public class UsbSCSI {
     public static final byte OPCODE_READ_CAPACITY = 0x25;
     public static final byte OPCODE_READ_10 = 0x28;
     public static final byte OPCODE_WRITE_10 = 0x2A;
-    private static final int BLOCK_BUFFER_SIZE = 64;
-    private byte[] blockBuffer;
-    private CommandBlockWrapper cbw;
-    private BulkOnlyTransportDriver driver;
-    private int blockLength;
-    private byte logicalUnitNumber;
+    public static final byte OPCODE_SYNCHRONIZE_CACHE_10 = 0x35;
+    public static final byte OPCODE_READ_16 = (byte) 0x88;
+    public static final byte OPCODE_WRITE_16 = (byte) 0x8A;
+    public static final byte OPCODE_SERVICE_ACTION_IN_16 = (byte) 0x9E;
+    public static final byte SERVICE_ACTION_READ_CAPACITY_16 = 0x10;
+    public static final int READ_CAPACITY_16_LENGTH = 32;
+    private static final int BLOCK_BUFFER_SIZE = 16;
+    private ThreadLocal commandBlocks;
+    private ThreadLocal priorities;
+    private BulkOnlyTransport transport;
+    private volatile int blockLength;
+    private volatile byte logicalUnitNumber;
+    private volatile boolean command16;
+
+    public UsbSCSI(BulkOnlyTransport transport) {
+        this.transport = transport;
+        commandBlocks = new ThreadLocal() {
+
+            protected Object initialValue() {
+                CommandBlockWrapper cbw = new CommandBlockWrapper();
+                cbw.setCB(new byte[BLOCK_BUFFER_SIZE]);
+                return cbw;
+            }
+        };
+        priorities = new ThreadLocal();
+    }
 
-    public UsbSCSI(BulkOnlyTransportDriver driver) {
-        this.driver = driver;
-        blockBuffer = new byte[BLOCK_BUFFER_SIZE];
-        cbw = new CommandBlockWrapper();
+    public BulkOnlyTransport getTransport() {
+        return transport;
     }
 
     /**
@@ -57,6 +76,19 @@ public class UsbSCSI {
         this.blockLength = blockLength;
     }
 
+    /**
+     * @return true if READ(16) is used for asynchronous reads
+     */
+    public boolean isCommand16() {
+        return command16;
+    }
+
+    /**
+     * @param command16 true if the device needs 16-byte commands
+     */
+    public void setCommand16(boolean command16) {
+        this.command16 = command16;
+    }
 
     /**
      * @return the logicalUnitNumber
@@ -72,159 +104,311 @@ public class UsbSCSI {
         this.logicalUnitNumber = logicalUnitNumber;
     }
 
+    /**
+     * Returns the calling thread's command block, ready to be filled.
+     */
+    private CommandBlockWrapper prepare(byte flags, int cbLength, int dataTransferLength, byte[] data) {
+        return prepare(flags, cbLength, dataTransferLength, data, 0);
+    }
+
+    private CommandBlockWrapper prepare(byte flags, int cbLength, int dataTransferLength, byte[] data, int offset) {
+        return prepare((CommandBlockWrapper) commandBlocks.get(), flags, cbLength, dataTransferLength, data, offset);
+    }
+
+    private CommandBlockWrapper prepare(CommandBlockWrapper cbw, byte flags, int cbLength, int dataTransferLength, byte[] data, int offset) {
+        cbw.setLUN(logicalUnitNumber);
+        cbw.setFlags(flags);
+        cbw.setCBLength((byte) cbLength);
+        cbw.setDataTransferLength(dataTransferLength);
+        cbw.setData(data, offset);
+        return cbw;
+    }
+
+    /**
+     * Returns the data phase length of a transfer of blocks.
+     * @throws IllegalArgumentException if it exceeds the buffer or 0xFFFFFFFF bytes
+     */
+    private int dataLength(long blocks, byte[] buffer, int offset) {
+        long length = blocks * blockLength;
+        if (length > 0xFFFFFFFFL || (buffer != null && length > buffer.length - offset)) {
+            throw new IllegalArgumentException("Transfer too large: " + length + " bytes");
+        }
+        return (int) length;
+    }
+
+    /**
+     * Sets the scheduling priority of commands issued by the calling thread.
+     * @param priority one of the CommandScheduler priorities
+     */
+    public void setPriority(int priority) {
+        priorities.set(new Integer(priority));
+    }
+
+    public int getPriority() {
+        Integer priority = (Integer) priorities.get();
+        return priority == null ? CommandScheduler.PRIORITY_NORMAL : priority.intValue();
+    }
+
+    private int execute(CommandBlockWrapper cbw) {
+        CommandFuture future = transport.executeCommandBlockAsync(cbw, null, getPriority(), 0);
+        int status = future.getUninterruptibly().getStatus();
+        future.release();
+        cbw.setData(null);
+        return status;
+    }
+
+    private byte lunBits() {
+        return (byte) ((logicalUnitNumber << 5) & 0xE);
+    }
+
+    private static void putInt32(byte[] cb, int offset, int value) {
+        cb[offset] = (byte) (value >> 24);
+        cb[offset + 1] = (byte) (value >> 16);
+        cb[offset + 2] = (byte) (value >> 8);
+        cb[offset + 3] = (byte) value;
+    }
+
+    private static void putInt64(byte[] cb, int offset, long value) {
+        putInt32(cb, offset, (int) (value >> 32));
+        putInt32(cb, offset + 4, (int) value);
+    }
+
     public int testUnitReady(byte control) {
+        CommandBlockWrapper cbw = prepare(CommandBlockWrapper.CBW_DIRECTION_OUT, 6, 0, null);
+        byte[] blockBuffer = cbw.getCB();
         blockBuffer[0] = OPCODE_TEST_UNIT_READY;
-        blockBuffer[1] = (byte) (
-                ((logicalUnitNumber << 5) & 0xE)
-                );
+        blockBuffer[1] = lunBits();
         blockBuffer[2] = 0;
         blockBuffer[3] = 0;
         blockBuffer[4] = 0;
         blockBuffer[5] = control;
-        cbw.setLUN(logicalUnitNumber);
-        cbw.setFlags(CommandBlockWrapper.CBW_DIRECTION_OUT);
-        cbw.setTag(0);
-        cbw.setCB(blockBuffer);
-        cbw.setCBLength((byte) 6);
-        cbw.setDataTransferLength(0);
-        cbw.setData(null);
-        CommandStatusWrapper csw = driver.executeCommandBlock(cbw);
-        return csw.getStatus();
+        return execute(cbw);
     }
 
     public int requestSense(byte alloc, byte control, byte[] buffer) {
+        CommandBlockWrapper cbw = prepare(CommandBlockWrapper.CBW_DIRECTION_IN, 6, alloc & 0xFF, buffer);
+        byte[] blockBuffer = cbw.getCB();
         blockBuffer[0] = OPCODE_REQUEST_SENSE;
-        blockBuffer[1] = (byte) (
-                ((logicalUnitNumber << 5) & 0xE)
-                );
+        blockBuffer[1] = lunBits();
         blockBuffer[2] = 0;
         blockBuffer[3] = 0;
         blockBuffer[4] = alloc;
         blockBuffer[5] = control;
-        cbw.setLUN(logicalUnitNumber);
-        cbw.setFlags(CommandBlockWrapper.CBW_DIRECTION_IN);
-        cbw.setTag(0);
-        cbw.setCB(blockBuffer);
-        cbw.setCBLength((byte) 6);
-        cbw.setDataTransferLength(alloc);
-        cbw.setData(buffer);
-        CommandStatusWrapper csw = driver.executeCommandBlock(cbw);
-        return csw.getStatus();
+        return execute(cbw);
     }
 
     public int inquiry(boolean evpd, byte pageCode, short alloc, byte control, byte[] buffer) {
+        CommandBlockWrapper cbw = prepare(CommandBlockWrapper.CBW_DIRECTION_IN, 6, alloc & 0xFFFF, buffer);
+        byte[] blockBuffer = cbw.getCB();
         blockBuffer[0] = OPCODE_INQUIRY;
         blockBuffer[1] = (byte) (
-                ((logicalUnitNumber << 5) & 0xE) |
+                lunBits() |
                 (evpd ? 1 : 0)
                 );
         blockBuffer[2] = pageCode;
         blockBuffer[3] = (byte) ((alloc >> 8) & 0xFF);
         blockBuffer[4] = (byte) (alloc & 0xFF);
         blockBuffer[5] = control;
-        cbw.setLUN(logicalUnitNumber);
-        cbw.setFlags(CommandBlockWrapper.CBW_DIRECTION_IN);
-        cbw.setTag(0);
-        cbw.setCB(blockBuffer);
-        cbw.setCBLength((byte) 6);
-        cbw.setDataTransferLength(alloc);
-        cbw.setData(buffer);
-        CommandStatusWrapper csw = driver.executeCommandBlock(cbw);
-        return csw.getStatus();
+        return execute(cbw);
     }
 
     public int modeSense6(boolean dbd, byte pageCode, byte pageControl, byte alloc, byte control, byte[] buffer) {
+        CommandBlockWrapper cbw = prepare(CommandBlockWrapper.CBW_DIRECTION_IN, 6, alloc & 0xFF, buffer);
+        byte[] blockBuffer = cbw.getCB();
         blockBuffer[0] = OPCODE_MODE_SENSE_6;
         blockBuffer[1] = (byte) (
-                ((logicalUnitNumber << 5) & 0xE) |
+                lunBits() |
                 ((dbd ? 1 : 0) << 3)
                 );
         blockBuffer[2] = (byte) (
-                ((pageControl << 6) & 0xC) |
+                ((pageControl << 6) & 0xC0) |
                 (pageCode & 0x3F)
                 );
         blockBuffer[3] = 0; // Reserved
         blockBuffer[4] = alloc;
         blockBuffer[5] = control;
-        cbw.setLUN(logicalUnitNumber);
-        cbw.setFlags(CommandBlockWrapper.CBW_DIRECTION_IN);
-        cbw.setTag(0);
-        cbw.setCB(blockBuffer);
-        cbw.setCBLength((byte) 6);
-        cbw.setDataTransferLength(alloc);
-        cbw.setData(buffer);
-        CommandStatusWrapper csw = driver.executeCommandBlock(cbw);
-        return csw.getStatus();
+        return execute(cbw);
     }
 
     public int readCapacity(boolean relAddr, int lba, byte pmi, byte control, byte[] buffer) {
+        CommandBlockWrapper cbw = prepare(CommandBlockWrapper.CBW_DIRECTION_IN, 10, 8, buffer);
+        byte[] blockBuffer = cbw.getCB();
         blockBuffer[0] = OPCODE_READ_CAPACITY;
         blockBuffer[1] = (byte) (
-                ((logicalUnitNumber << 5) & 0xE) |
+                lunBits() |
                 (relAddr ? 1 : 0)
                 );
-        System.arraycopy(ByteUtil.BIG_ENDIAN.toByteArray(lba, ByteUtil.INT_32_SIZE), 0, blockBuffer, 2, ByteUtil.INT_32_SIZE);
+        putInt32(blockBuffer, 2, lba);
         blockBuffer[6] = 0; // Reserved
         blockBuffer[7] = 0; // Reserved
         blockBuffer[8] = (byte) (pmi & 0x01);
         blockBuffer[9] = control;
-        cbw.setLUN(logicalUnitNumber);
-        cbw.setFlags(CommandBlockWrapper.CBW_DIRECTION_IN);
-        cbw.setTag(0);
-        cbw.setCB(blockBuffer);
-        cbw.setCBLength((byte) 10);
-        cbw.setDataTransferLength(8);
-        cbw.setData(buffer);
-        CommandStatusWrapper csw = driver.executeCommandBlock(cbw);
-        return csw.getStatus();
+        return execute(cbw);
     }
 
     public int read10(boolean relAddr, boolean fua, boolean dpo, int lba, short transferLength, byte control, byte[] buffer) {
+        return read10(relAddr, fua, dpo, lba, transferLength, control, buffer, 0);
+    }
+
+    /**
+     * Reads the data phase directly into buffer at offset.
+     */
+    public int read10(boolean relAddr, boolean fua, boolean dpo, int lba, short transferLength, byte control, byte[] buffer, int offset) {
+        CommandBlockWrapper cbw = (CommandBlockWrapper) commandBlocks.get();
+        return execute(prepareRead10(cbw, relAddr, fua, dpo, lba, transferLength, control, buffer, offset));
+    }
+
+    private CommandBlockWrapper prepareRead10(CommandBlockWrapper cbw, boolean relAddr, boolean fua, boolean dpo, int lba, short transferLength, byte control, byte[] buffer, int offset) {
+        prepare(cbw, CommandBlockWrapper.CBW_DIRECTION_IN, 10, dataLength(transferLength & 0xFFFF, buffer, offset), buffer, offset);
+        byte[] blockBuffer = cbw.getCB();
         blockBuffer[0] = OPCODE_READ_10;
         blockBuffer[1] = (byte) (
-                ((logicalUnitNumber << 5) & 0xE) |
+                lunBits() |
                 ((dpo ? 1 : 0) << 4) |
                 ((fua ? 1 : 0) << 3) |
                 (relAddr ? 1 : 0)
                 );
-        System.arraycopy(ByteUtil.BIG_ENDIAN.toByteArray(lba, ByteUtil.INT_32_SIZE), 0, blockBuffer, 2, ByteUtil.INT_32_SIZE);
+        putInt32(blockBuffer, 2, lba);
         blockBuffer[6] = 0; // Reserved
         blockBuffer[7] = (byte) ((transferLength >> 8) & 0xFF);
         blockBuffer[8] = (byte) (transferLength & 0xFF);
         blockBuffer[9] = control;
-        cbw.setLUN(logicalUnitNumber);
-        cbw.setFlags(CommandBlockWrapper.CBW_DIRECTION_IN);
-        cbw.setTag(0);
-        cbw.setCB(blockBuffer);
-        cbw.setCBLength((byte) 10);
-        cbw.setDataTransferLength(transferLength * blockLength);
-        cbw.setData(buffer);
-        CommandStatusWrapper csw = driver.executeCommandBlock(cbw);
-        return csw.getStatus();
+        return cbw;
     }
 
     public int write10(boolean relAddr, boolean fua, boolean dpo, boolean ebp, int lba, short transferLength, byte control, byte[] buffer) {
+        return write10(relAddr, fua, dpo, ebp, lba, transferLength, control, buffer, 0);
+    }
+
+    /**
+     * Writes the data phase directly from buffer at offset.
+     */
+    public int write10(boolean relAddr, boolean fua, boolean dpo, boolean ebp, int lba, short transferLength, byte control, byte[] buffer, int offset) {
+        CommandBlockWrapper cbw = prepare(CommandBlockWrapper.CBW_DIRECTION_OUT, 10, dataLength(transferLength & 0xFFFF, buffer, offset), buffer, offset);
+        byte[] blockBuffer = cbw.getCB();
         blockBuffer[0] = OPCODE_WRITE_10;
         blockBuffer[1] = (byte) (
-                ((logicalUnitNumber << 5) & 0xE) |
+                lunBits() |
                 ((dpo ? 1 : 0) << 4) |
                 ((fua ? 1 : 0) << 3) |
                 ((ebp ? 1 : 0) << 2) |
                 (relAddr ? 1 : 0)
                 );
-        System.arraycopy(ByteUtil.BIG_ENDIAN.toByteArray(lba, ByteUtil.INT_32_SIZE), 0, blockBuffer, 2, ByteUtil.INT_32_SIZE);
+        putInt32(blockBuffer, 2, lba);
         blockBuffer[6] = 0; // Reserved
         blockBuffer[7] = (byte) ((transferLength >> 8) & 0xFF);
         blockBuffer[8] = (byte) (transferLength & 0xFF);
         blockBuffer[9] = control;
-        cbw.setLUN(logicalUnitNumber);
-        cbw.setFlags(CommandBlockWrapper.CBW_DIRECTION_OUT);
-        cbw.setTag(0);
-        cbw.setCB(blockBuffer);
-        cbw.setCBLength((byte) 10);
-        cbw.setDataTransferLength(transferLength * blockLength);
-        cbw.setData(buffer);
-        CommandStatusWrapper csw = driver.executeCommandBlock(cbw);
-        return csw.getStatus();
+        return execute(cbw);
+    }
+
+    /**
+     * @param blocks number of blocks to synchronize, or 0 for all blocks from lba
+     */
+    public int synchronizeCache10(boolean immed, int lba, short blocks, byte control) {
+        CommandBlockWrapper cbw = prepare(CommandBlockWrapper.CBW_DIRECTION_OUT, 10, 0, null);
+        byte[] blockBuffer = cbw.getCB();
+        blockBuffer[0] = OPCODE_SYNCHRONIZE_CACHE_10;
+        blockBuffer[1] = (byte) (
+                lunBits() |
+                ((immed ? 1 : 0) << 1)
+                );
+        putInt32(blockBuffer, 2, lba);
+        blockBuffer[6] = 0; // Group Number
+        blockBuffer[7] = (byte) ((blocks >> 8) & 0xFF);
+        blockBuffer[8] = (byte) (blocks & 0xFF);
+        blockBuffer[9] = control;
+        return execute(cbw);
+    }
+
+    /**
+     * READ CAPACITY(16), needed when READ CAPACITY(10) reports 0xFFFFFFFF as the last LBA.
+     */
+    public int readCapacity16(int alloc, byte control, byte[] buffer) {
+        CommandBlockWrapper cbw = prepare(CommandBlockWrapper.CBW_DIRECTION_IN, 16, alloc, buffer);
+        byte[] blockBuffer = cbw.getCB();
+        blockBuffer[0] = OPCODE_SERVICE_ACTION_IN_16;
+        blockBuffer[1] = SERVICE_ACTION_READ_CAPACITY_16;
+        putInt64(blockBuffer, 2, 0);
+        putInt32(blockBuffer, 10, alloc);
+        blockBuffer[14] = 0; // PMI
+        blockBuffer[15] = control;
+        return execute(cbw);
+    }
+
+    public int read16(boolean fua, boolean dpo, long lba, int transferLength, byte control, byte[] buffer) {
+        return read16(fua, dpo, lba, transferLength, control, buffer, 0);
+    }
+
+    /**
+     * Reads the data phase directly into buffer at offset.
+     */
+    public int read16(boolean fua, boolean dpo, long lba, int transferLength, byte control, byte[] buffer, int offset) {
+        CommandBlockWrapper cbw = (CommandBlockWrapper) commandBlocks.get();
+        return execute(prepareRead16(cbw, fua, dpo, lba, transferLength, control, buffer, offset));
+    }
+
+    private CommandBlockWrapper prepareRead16(CommandBlockWrapper cbw, boolean fua, boolean dpo, long lba, int transferLength, byte control, byte[] buffer, int offset) {
+        prepare(cbw, CommandBlockWrapper.CBW_DIRECTION_IN, 16, dataLength(transferLength & 0xFFFFFFFFL, buffer, offset), buffer, offset);
+        byte[] blockBuffer = cbw.getCB();
+        blockBuffer[0] = OPCODE_READ_16;
+        blockBuffer[1] = (byte) (
+                ((dpo ? 1 : 0) << 4) |
+                ((fua ? 1 : 0) << 3)
+                );
+        putInt64(blockBuffer, 2, lba);
+        putInt32(blockBuffer, 10, transferLength);
+        blockBuffer[14] = 0; // Group Number
+        blockBuffer[15] = control;
+        return cbw;
+    }
+
+    /**
+     * Creates a command block for {@link #readAsync}.
+     * Each command in flight needs its own.
+     */
+    public CommandBlockWrapper createCommandBlock() {
+        CommandBlockWrapper cbw = new CommandBlockWrapper();
+        cbw.setCB(new byte[BLOCK_BUFFER_SIZE]);
+        return cbw;
+    }
+
+    /**
+     * Queues a READ of blocks into buffer at offset and returns without waiting.
+     * READ(16) is used only after {@link #setCommand16}, so without it
+     * blocks must not exceed 0xFFFF.
+     * The command block and the buffer stay in use until the future is done.
+     */
+    public CommandFuture readAsync(CommandBlockWrapper cbw, long lba, int blocks, byte[] buffer, int offset, CommandListener listener) {
+        if (command16) {
+            prepareRead16(cbw, false, false, lba, blocks, (byte) 0, buffer, offset);
+        } else if (blocks <= 0xFFFF) {
+            prepareRead10(cbw, false, false, false, (int) lba, (short) blocks, (byte) 0, buffer, offset);
+        } else {
+            throw new IllegalArgumentException("READ(10) cannot transfer " + blocks + " blocks");
+        }
+        return transport.executeCommandBlockAsync(cbw, listener, getPriority(), 0);
+    }
+
+    public int write16(boolean fua, boolean dpo, long lba, int transferLength, byte control, byte[] buffer) {
+        return write16(fua, dpo, lba, transferLength, control, buffer, 0);
+    }
+
+    /**
+     * Writes the data phase directly from buffer at offset.
+     */
+    public int write16(boolean fua, boolean dpo, long lba, int transferLength, byte control, byte[] buffer, int offset) {
+        CommandBlockWrapper cbw = prepare(CommandBlockWrapper.CBW_DIRECTION_OUT, 16, dataLength(transferLength & 0xFFFFFFFFL, buffer, offset), buffer, offset);
+        byte[] blockBuffer = cbw.getCB();
+        blockBuffer[0] = OPCODE_WRITE_16;
+        blockBuffer[1] = (byte) (
+                ((dpo ? 1 : 0) << 4) |
+                ((fua ? 1 : 0) << 3)
+                );
+        putInt64(blockBuffer, 2, lba);
+        putInt32(blockBuffer, 10, transferLength);
+        blockBuffer[14] = 0; // Group Number
+        blockBuffer[15] = control;
+        return execute(cbw);
     }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb;
+
+import java.util.Vector;
+import junit.framework.TestCase;
+
+/**
+ * Scheduling of {@link EnumerationExecutor} tasks.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class EnumerationExecutorTest extends TestCase {
+
+    private static final long TIMEOUT = 5000;
+    private EnumerationExecutor executor;
+    private int active;
+    private int maxActive;
+    private boolean open;
+
+    protected void tearDown() throws Exception {
+        if (executor != null) {
+            executor.close();
+        }
+        release();
+    }
+
+    private synchronized void enter() throws InterruptedException {
+        active++;
+        maxActive = Math.max(maxActive, active);
+        notifyAll();
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (!open && System.currentTimeMillis() < end) {
+            wait(end - System.currentTimeMillis());
+        }
+    }
+
+    private synchronized void exit() {
+        active--;
+        notifyAll();
+    }
+
+    private synchronized void release() {
+        open = true;
+        notifyAll();
+    }
+
+    private synchronized boolean awaitActive(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (active < count) {
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    private Runnable blocking() {
+        return new Runnable() {
+
+            public void run() {
+                try {
+                    enter();
+                } catch (InterruptedException ex) {
+                } finally {
+                    exit();
+                }
+            }
+        };
+    }
+
+    public void testDifferentKeysRunConcurrentlyUpToBound() throws Exception {
+        executor = new EnumerationExecutor(2);
+        // Leave one idle worker behind so new keys must not rely on it alone.
+        assertTrue(executor.execute("warm", new Runnable() {
+
+            public void run() {
+            }
+        }));
+        assertTrue(executor.awaitIdle(TIMEOUT));
+        Thread.sleep(100);
+
+        assertTrue(executor.execute("a", blocking()));
+        assertTrue(executor.execute("b", blocking()));
+        assertTrue(executor.execute("c", blocking()));
+        assertTrue(awaitActive(2));
+        Thread.sleep(200);
+        synchronized (this) {
+            assertEquals(2, maxActive);
+        }
+        assertEquals(3, executor.getPendingCount());
+
+        release();
+        assertTrue(executor.awaitIdle(TIMEOUT));
+        assertEquals(0, executor.getPendingCount());
+        assertEquals(2, maxActive);
+    }
+
+    public void testSameKeyRunsInOrder() throws Exception {
+        executor = new EnumerationExecutor(4);
+        final Vector order = new Vector();
+        for (int i = 0; i < 20; i++) {
+            final Integer index = new Integer(i);
+            assertTrue(executor.execute("device", new Runnable() {
+
+                public void run() {
+                    synchronized (EnumerationExecutorTest.this) {
+                        active++;
+                        maxActive = Math.max(maxActive, active);
+                    }
+                    order.add(index);
+                    Thread.yield();
+                    exit();
+                }
+            }));
+        }
+        assertTrue(executor.awaitIdle(TIMEOUT));
+        assertEquals(1, maxActive);
+        assertEquals(20, order.size());
+        for (int i = 0; i < order.size(); i++) {
+            assertEquals(i, ((Integer) order.get(i)).intValue());
+        }
+    }
+
+    public void testClosedExecutorRejectsTasks() throws Exception {
+        executor = new EnumerationExecutor(1);
+        executor.close();
+        assertFalse(executor.execute("device", blocking()));
+        assertTrue(executor.awaitIdle(TIMEOUT));
+    }
+}
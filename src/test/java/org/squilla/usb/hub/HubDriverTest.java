@@ -0,0 +1,59 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.hub;
+
+import junit.framework.TestCase;
+
+/**
+ * Decoding of hub status change bitmaps.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class HubDriverTest extends TestCase {
+
+    public void testHubAndPortBits() {
+        int[] changed = new int[8];
+        // Bit 0 is the hub, bits 2 and 4 are ports 2 and 4.
+        int count = HubDriver.decodeChangeBitmap(new byte[]{0x15}, 1, 7, changed);
+        assertEquals(3, count);
+        assertEquals(0, changed[0]);
+        assertEquals(2, changed[1]);
+        assertEquals(4, changed[2]);
+    }
+
+    public void testBitsBeyondMaxPortAreIgnored() {
+        int[] changed = new int[5];
+        int count = HubDriver.decodeChangeBitmap(new byte[]{(byte) 0xFF}, 1, 4, changed);
+        assertEquals(5, count);
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, changed[i]);
+        }
+    }
+
+    public void testSecondByteHoldsPortsFromEight() {
+        int[] changed = new int[11];
+        int count = HubDriver.decodeChangeBitmap(new byte[]{0, 0x05, (byte) 0xFF}, 3, 10, changed);
+        assertEquals(2, count);
+        assertEquals(8, changed[0]);
+        assertEquals(10, changed[1]);
+    }
+
+    public void testLengthLimitsDecoding() {
+        int[] changed = new int[16];
+        assertEquals(0, HubDriver.decodeChangeBitmap(new byte[]{0, (byte) 0xFF}, 1, 15, changed));
+        assertEquals(0, HubDriver.decodeChangeBitmap(new byte[0], 0, 15, changed));
+    }
+}
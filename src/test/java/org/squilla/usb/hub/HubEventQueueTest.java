@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.hub;
+
+import junit.framework.TestCase;
+
+/**
+ * Coalescing of {@link HubEventQueue}.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class HubEventQueueTest extends TestCase {
+
+    private HubEventQueue queue;
+    private int[] ports;
+
+    protected void setUp() throws Exception {
+        queue = new HubEventQueue(4);
+        ports = new int[5];
+    }
+
+    public void testRepeatedChangesAreMerged() throws Exception {
+        assertTrue(queue.post(3));
+        assertTrue(queue.post(0));
+        assertFalse(queue.post(3));
+        assertTrue(queue.post(1));
+        assertFalse(queue.post(0));
+        assertEquals(3, queue.size());
+
+        // In the order the ports first changed.
+        assertEquals(3, queue.take(ports));
+        assertEquals(3, ports[0]);
+        assertEquals(0, ports[1]);
+        assertEquals(1, ports[2]);
+        assertEquals(0, queue.size());
+
+        // Dispatched ports may be queued again.
+        assertTrue(queue.post(3));
+        assertEquals(1, queue.take(ports));
+        assertEquals(3, ports[0]);
+    }
+
+    public void testEveryPortFitsAfterWrapping() throws Exception {
+        for (int round = 0; round < 3; round++) {
+            for (int port = 4; port >= 0; port--) {
+                assertTrue(queue.post(port));
+            }
+            assertEquals(5, queue.take(ports));
+            for (int i = 0; i < 5; i++) {
+                assertEquals(4 - i, ports[i]);
+            }
+        }
+    }
+
+    public void testTakeWaitsForPost() throws Exception {
+        Thread poster = new Thread() {
+
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ex) {
+                }
+                queue.post(2);
+            }
+        };
+        poster.start();
+        assertEquals(1, queue.take(ports));
+        assertEquals(2, ports[0]);
+        poster.join();
+    }
+
+    public void testCloseEndsTake() throws Exception {
+        queue.post(1);
+        queue.close();
+        assertEquals(-1, queue.take(ports));
+    }
+}
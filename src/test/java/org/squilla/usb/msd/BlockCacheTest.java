@@ -0,0 +1,102 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+import java.nio.ByteBuffer;
+import junit.framework.TestCase;
+
+/**
+ * Contents and invalidation of {@link BlockCache}.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class BlockCacheTest extends TestCase {
+
+    private static final int BLOCK_LENGTH = 16;
+    private BlockCache cache;
+
+    protected void setUp() throws Exception {
+        cache = new BlockCache(4 * BLOCK_LENGTH);
+        assertTrue(cache.init(BLOCK_LENGTH));
+    }
+
+    private static byte[] blocks(int count, int seed) {
+        byte[] data = new byte[count * BLOCK_LENGTH];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i + seed);
+        }
+        return data;
+    }
+
+    private byte readByte(long lba, int skip) {
+        ByteBuffer dst = ByteBuffer.allocate(1);
+        assertTrue(cache.read(0, lba, skip, 1, dst));
+        return dst.get(0);
+    }
+
+    public void testFillWithCurrentGenerationIsStored() {
+        int generation = cache.getGeneration();
+        cache.fill(generation, 0, 10, 2, blocks(2, 1), 0);
+        assertTrue(cache.contains(0, 10));
+        assertTrue(cache.contains(0, 11));
+        assertFalse(cache.contains(1, 10));
+        assertEquals((byte) (BLOCK_LENGTH + 3 + 1), readByte(11, 3));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    public void testFillAfterWriteIsDropped() {
+        int generation = cache.getGeneration();
+        // A write lands while the READ is in flight.
+        cache.write(0, 10, 1, blocks(1, 7), 0);
+        cache.fill(generation, 0, 10, 2, blocks(2, 1), 0);
+        assertFalse(cache.contains(0, 11));
+        assertEquals((byte) 7, readByte(10, 0));
+    }
+
+    public void testFillAfterInvalidateIsDropped() {
+        int generation = cache.getGeneration();
+        cache.invalidate(0, 20, 1);
+        cache.fill(generation, 0, 10, 1, blocks(1, 1), 0);
+        assertFalse(cache.contains(0, 10));
+    }
+
+    public void testResetDropsBlocksAndPendingFills() {
+        cache.write(0, 10, 1, blocks(1, 1), 0);
+        cache.validate(0);
+        assertTrue(cache.contains(0, 10));
+        int generation = cache.getGeneration();
+        cache.validate(1);
+        assertFalse(cache.contains(0, 10));
+        cache.fill(generation, 0, 10, 1, blocks(1, 1), 0);
+        assertFalse(cache.contains(0, 10));
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() {
+        cache.write(0, 0, 4, blocks(4, 0), 0);
+        // Block 0 becomes the most recently used.
+        readByte(0, 0);
+        cache.write(0, 4, 1, blocks(1, 0), 0);
+        assertTrue(cache.contains(0, 0));
+        assertFalse(cache.contains(0, 1));
+        assertTrue(cache.contains(0, 4));
+    }
+
+    public void testMissIsCounted() {
+        assertFalse(cache.read(0, 5, 0, 1, ByteBuffer.allocate(1)));
+        assertEquals(1, cache.getMissCount());
+        assertFalse(cache.init(BLOCK_LENGTH * 2));
+    }
+}
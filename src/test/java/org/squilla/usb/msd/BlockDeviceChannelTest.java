@@ -0,0 +1,168 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import junit.framework.TestCase;
+
+/**
+ * Positioning and partial transfers of {@link BlockDeviceChannel}.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class BlockDeviceChannelTest extends TestCase {
+
+    private static final int BLOCK_LENGTH = 512;
+    private static final int BLOCK_COUNT = 8;
+    private static final int SIZE = BLOCK_LENGTH * BLOCK_COUNT;
+    private MemoryBlockDevice device;
+    private BlockDeviceChannel channel;
+
+    protected void setUp() throws Exception {
+        device = new MemoryBlockDevice();
+        for (int i = 0; i < SIZE; i++) {
+            device.data[i] = (byte) (i * 7);
+        }
+        channel = new BlockDeviceChannel(device);
+    }
+
+    public void testSizeAndPosition() throws Exception {
+        assertEquals(SIZE, channel.size());
+        assertEquals(0, channel.position());
+        ByteBuffer dst = ByteBuffer.allocate(100);
+        assertEquals(100, channel.read(dst));
+        assertEquals(100, channel.position());
+        assertEquals((byte) (99 * 7), dst.get(99));
+
+        assertSame(channel, channel.position(1000));
+        dst.clear();
+        assertEquals(100, channel.read(dst));
+        assertEquals((byte) (1000 * 7), dst.get(0));
+        assertEquals(1100, channel.position());
+    }
+
+    public void testPartialReadAtEnd() throws Exception {
+        channel.position(SIZE - 10);
+        ByteBuffer dst = ByteBuffer.allocate(100);
+        assertEquals(10, channel.read(dst));
+        assertEquals(10, dst.position());
+        assertEquals(SIZE, channel.position());
+        assertEquals(-1, channel.read(dst));
+
+        channel.position(SIZE + 100);
+        assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+    }
+
+    public void testPositionalReadKeepsPosition() throws Exception {
+        channel.position(5);
+        ByteBuffer dst = ByteBuffer.allocate(3);
+        assertEquals(3, channel.read(dst, 600));
+        assertEquals((byte) (600 * 7), dst.get(0));
+        assertEquals(5, channel.position());
+        assertEquals(-1, channel.read(ByteBuffer.allocate(1), SIZE));
+    }
+
+    public void testScatteringRead() throws Exception {
+        channel.position(SIZE - 30);
+        ByteBuffer[] dsts = {ByteBuffer.allocate(20), ByteBuffer.allocate(20)};
+        assertEquals(30, channel.read(dsts));
+        assertEquals(20, dsts[0].position());
+        assertEquals(10, dsts[1].position());
+        assertEquals((byte) ((SIZE - 10) * 7), dsts[1].get(0));
+    }
+
+    public void testPartialWriteAtEnd() throws Exception {
+        channel.position(SIZE - 4);
+        assertEquals(4, channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6})));
+        assertEquals(SIZE, channel.position());
+        assertEquals((byte) 4, device.data[SIZE - 1]);
+        try {
+            channel.write(ByteBuffer.wrap(new byte[]{1}));
+            fail("wrote past the end");
+        } catch (IOException ex) {
+        }
+    }
+
+    public void testTruncate() throws Exception {
+        channel.position(SIZE + 10);
+        assertSame(channel, channel.truncate(SIZE));
+        assertEquals(SIZE, channel.position());
+        try {
+            channel.truncate(SIZE - 1);
+            fail("truncated a block device");
+        } catch (IOException ex) {
+        }
+    }
+
+    public void testTransferTo() throws Exception {
+        MemoryBlockDevice target = new MemoryBlockDevice();
+        BlockDeviceChannel targetChannel = new BlockDeviceChannel(target);
+        assertEquals(SIZE - 100, channel.transferTo(100, SIZE, targetChannel));
+        assertEquals(SIZE - 100, targetChannel.position());
+        assertEquals((byte) (100 * 7), target.data[0]);
+        assertEquals(0, channel.position());
+    }
+
+    public void testReadOnlyAndClosed() throws Exception {
+        BlockDeviceChannel readOnly = new BlockDeviceChannel(device, false);
+        try {
+            readOnly.write(ByteBuffer.allocate(1));
+            fail("wrote to a read-only channel");
+        } catch (NonWritableChannelException ex) {
+        }
+        channel.close();
+        try {
+            channel.read(ByteBuffer.allocate(1));
+            fail("read a closed channel");
+        } catch (ClosedChannelException ex) {
+        }
+    }
+
+    private static class MemoryBlockDevice implements BlockDevice {
+
+        private byte[] data = new byte[SIZE];
+
+        public int getBlockLength() {
+            return BLOCK_LENGTH;
+        }
+
+        public long getBlockCount() {
+            return BLOCK_COUNT;
+        }
+
+        public long getSize() {
+            return SIZE;
+        }
+
+        public void read(long offset, ByteBuffer dst) {
+            dst.put(data, (int) offset, dst.remaining());
+        }
+
+        public void write(long offset, ByteBuffer src) {
+            src.get(data, (int) offset, src.remaining());
+        }
+
+        public void writeThrough(long offset, ByteBuffer src) {
+            write(offset, src);
+        }
+
+        public void sync() {
+        }
+    }
+}
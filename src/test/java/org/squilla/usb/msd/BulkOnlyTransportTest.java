@@ -0,0 +1,166 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import junit.framework.TestCase;
+import org.squilla.usb.msd.emulator.EmulatedUsbDevice;
+import org.squilla.usb.msd.emulator.MassStorageEmulator;
+
+/**
+ * Bulk-Only round trips against a {@link MassStorageEmulator}.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class BulkOnlyTransportTest extends TestCase {
+
+    private static final int BLOCK_LENGTH = 512;
+    private static final int BLOCK_COUNT = 256;
+    private ByteBuffer image;
+    private MassStorageEmulator emulator;
+    private BulkOnlyTransport transport;
+    private UsbSCSI usbSCSI;
+
+    protected void setUp() throws Exception {
+        image = ByteBuffer.allocate(BLOCK_LENGTH * BLOCK_COUNT);
+        emulator = new MassStorageEmulator(new ByteBuffer[]{image}, BLOCK_LENGTH);
+    }
+
+    protected void tearDown() throws Exception {
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
+    private void open(boolean pipelined) throws Exception {
+        EmulatedUsbDevice device = new EmulatedUsbDevice(emulator);
+        transport = new BulkOnlyTransport(device, device.getMassStorageInterface());
+        transport.setPipelined(pipelined);
+        assertTrue(transport.open());
+        transport.start();
+        usbSCSI = new UsbSCSI(transport);
+        usbSCSI.setBlockLength(BLOCK_LENGTH);
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    private void assertImage(byte[] data, int offset) {
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], image.get(offset + i));
+        }
+    }
+
+    public void testRoundTrip() throws Exception {
+        open(false);
+        UsbBlockDevice blockDevice = new UsbBlockDevice(usbSCSI);
+        assertEquals(BLOCK_COUNT, blockDevice.getBlockCount());
+
+        byte[] data = pattern(3 * BLOCK_LENGTH + 100, 1);
+        blockDevice.write(700, ByteBuffer.wrap(data));
+        assertImage(data, 700);
+
+        ByteBuffer read = ByteBuffer.allocate(data.length);
+        blockDevice.read(700, read);
+        assertTrue(Arrays.equals(data, read.array()));
+        assertEquals(0, transport.getResetCount());
+    }
+
+    public void testPipelinedRoundTrip() throws Exception {
+        open(true);
+        byte[] data = pattern(8 * BLOCK_LENGTH, 2);
+        assertEquals(CommandStatusWrapper.STATUS_COMMAND_PASSED,
+                usbSCSI.write10(false, false, false, false, 16, (short) 8, (byte) 0, data));
+        assertImage(data, 16 * BLOCK_LENGTH);
+
+        byte[] read = new byte[data.length];
+        assertEquals(CommandStatusWrapper.STATUS_COMMAND_PASSED,
+                usbSCSI.read10(false, false, false, 16, (short) 8, (byte) 0, read, 0));
+        assertTrue(Arrays.equals(data, read));
+    }
+
+    public void testExecuteCommandBlockReturnsOwnedStatus() throws Exception {
+        open(false);
+        CommandStatusWrapper first = transport.executeCommandBlock(testUnitReady());
+        CommandStatusWrapper second = transport.executeCommandBlock(testUnitReady());
+        assertTrue(first != second);
+        assertTrue(first.isValid());
+        assertEquals(CommandStatusWrapper.STATUS_COMMAND_PASSED, first.getStatus());
+        assertTrue(first.getTag() != second.getTag());
+    }
+
+    private static CommandBlockWrapper testUnitReady() {
+        CommandBlockWrapper cbw = new CommandBlockWrapper();
+        cbw.setCB(new byte[16]);
+        cbw.setFlags(CommandBlockWrapper.CBW_DIRECTION_OUT);
+        cbw.setCBLength((byte) 6);
+        return cbw;
+    }
+
+    public void testDataStallClearsHalt() throws Exception {
+        open(false);
+        byte[] data = pattern(4 * BLOCK_LENGTH, 3);
+        image.position(0);
+        image.put(data);
+
+        emulator.injectStall(MassStorageEmulator.PHASE_DATA, 1);
+        byte[] read = new byte[data.length];
+        CommandFuture future = usbSCSI.readAsync(usbSCSI.createCommandBlock(), 0, 4, read, 0, null);
+        CommandStatusWrapper csw = future.getUninterruptibly();
+        // The device reports the stalled data phase as residue.
+        assertEquals(data.length, csw.getDataResidue());
+        future.release();
+        assertFalse(emulator.isHalted(MassStorageEmulator.BULK_IN_ADDRESS));
+        assertEquals(0, transport.getResetCount());
+
+        assertEquals(CommandStatusWrapper.STATUS_COMMAND_PASSED,
+                usbSCSI.read10(false, false, false, 0, (short) 4, (byte) 0, read, 0));
+        assertTrue(Arrays.equals(data, read));
+    }
+
+    public void testStatusStallRecoversWithReset() throws Exception {
+        open(false);
+        assertResetRecovery();
+    }
+
+    public void testPipelinedStatusStallRecoversWithReset() throws Exception {
+        open(true);
+        assertResetRecovery();
+    }
+
+    private void assertResetRecovery() throws Exception {
+        // A CSW that stalls twice leaves only the reset recovery.
+        emulator.injectStall(MassStorageEmulator.PHASE_STATUS, 2);
+        assertEquals(CommandStatusWrapper.STATUS_PHASE_ERROR, usbSCSI.testUnitReady((byte) 0));
+        assertEquals(1, transport.getResetCount());
+        assertFalse(emulator.isHalted(MassStorageEmulator.BULK_IN_ADDRESS));
+        assertFalse(emulator.isHalted(MassStorageEmulator.BULK_OUT_ADDRESS));
+
+        byte[] data = pattern(2 * BLOCK_LENGTH, 4);
+        assertEquals(CommandStatusWrapper.STATUS_COMMAND_PASSED,
+                usbSCSI.write10(false, false, false, false, 32, (short) 2, (byte) 0, data));
+        byte[] read = new byte[data.length];
+        assertEquals(CommandStatusWrapper.STATUS_COMMAND_PASSED,
+                usbSCSI.read10(false, false, false, 32, (short) 2, (byte) 0, read, 0));
+        assertTrue(Arrays.equals(data, read));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+import junit.framework.TestCase;
+
+/**
+ * Ordering of {@link DeadlineCommandScheduler}.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class DeadlineCommandSchedulerTest extends TestCase {
+
+    private DeadlineCommandScheduler scheduler;
+
+    protected void setUp() throws Exception {
+        scheduler = new DeadlineCommandScheduler(32);
+    }
+
+    private CommandFuture offer(int lun, byte opcode, int lba, int blocks, int priority, long deadline) {
+        CommandBlockWrapper cbw = new CommandBlockWrapper();
+        byte[] cb = new byte[16];
+        cb[0] = opcode;
+        cb[2] = (byte) (lba >> 24);
+        cb[3] = (byte) (lba >> 16);
+        cb[4] = (byte) (lba >> 8);
+        cb[5] = (byte) lba;
+        cb[7] = (byte) (blocks >> 8);
+        cb[8] = (byte) blocks;
+        cbw.setCB(cb);
+        cbw.setLUN((byte) lun);
+        CommandFuture future = new CommandFuture(null);
+        future.reset(cbw, null, priority, deadline);
+        assertTrue(scheduler.offer(future));
+        return future;
+    }
+
+    private CommandFuture read(int lba, int blocks, int priority) {
+        return offer(0, UsbSCSI.OPCODE_READ_10, lba, blocks, priority, 0);
+    }
+
+    private CommandFuture write(int lba, int blocks, int priority) {
+        return offer(0, UsbSCSI.OPCODE_WRITE_10, lba, blocks, priority, 0);
+    }
+
+    public void testWriteWaitsForOverlappingRead() throws Exception {
+        CommandFuture read = read(10, 8, CommandScheduler.PRIORITY_BULK);
+        CommandFuture overlapping = write(12, 2, CommandScheduler.PRIORITY_INTERACTIVE);
+        CommandFuture disjoint = write(100, 2, CommandScheduler.PRIORITY_INTERACTIVE);
+        assertSame(disjoint, scheduler.take());
+        assertSame(read, scheduler.take());
+        assertSame(overlapping, scheduler.take());
+    }
+
+    public void testReadWaitsForOverlappingWrite() throws Exception {
+        CommandFuture write = write(0, 4, CommandScheduler.PRIORITY_BULK);
+        CommandFuture read = read(3, 1, CommandScheduler.PRIORITY_INTERACTIVE);
+        assertSame(write, scheduler.take());
+        assertSame(read, scheduler.take());
+    }
+
+    public void testOtherCommandsKeepTheirPlace() throws Exception {
+        CommandFuture read = read(0, 1, CommandScheduler.PRIORITY_BULK);
+        CommandFuture testUnitReady = offer(0, UsbSCSI.OPCODE_TEST_UNIT_READY, 0, 0,
+                CommandScheduler.PRIORITY_INTERACTIVE, 0);
+        assertSame(read, scheduler.take());
+        assertSame(testUnitReady, scheduler.take());
+    }
+
+    public void testReadsAreSortedInOneDirection() throws Exception {
+        read(40, 1, CommandScheduler.PRIORITY_NORMAL);
+        scheduler.take();
+        read(50, 1, CommandScheduler.PRIORITY_NORMAL);
+        read(10, 1, CommandScheduler.PRIORITY_NORMAL);
+        read(70, 1, CommandScheduler.PRIORITY_NORMAL);
+        read(30, 1, CommandScheduler.PRIORITY_NORMAL);
+        int[] expected = {50, 70, 10, 30};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("take " + i, expected[i], scheduler.take().getCommandBlock().getCB()[5]);
+        }
+    }
+
+    public void testLunsTakeTurns() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            offer(0, UsbSCSI.OPCODE_READ_10, i, 1, CommandScheduler.PRIORITY_NORMAL, 0);
+            offer(1, UsbSCSI.OPCODE_READ_10, i, 1, CommandScheduler.PRIORITY_NORMAL, 0);
+        }
+        int[] expected = {1, 0, 1, 0};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("take " + i, expected[i], scheduler.take().getCommandBlock().getLUN());
+        }
+    }
+
+    public void testExpiredCommandPassesHigherPriority() throws Exception {
+        CommandFuture interactive = read(100, 1, CommandScheduler.PRIORITY_INTERACTIVE);
+        CommandFuture expired = offer(0, UsbSCSI.OPCODE_WRITE_10, 0, 1, CommandScheduler.PRIORITY_BULK, 1);
+        assertSame(expired, scheduler.take());
+        assertSame(interactive, scheduler.take());
+    }
+
+    public void testWritesExpireByDefault() throws Exception {
+        scheduler.setExpire(DeadlineCommandScheduler.DEFAULT_READ_EXPIRE, -1000);
+        CommandFuture interactive = read(100, 1, CommandScheduler.PRIORITY_INTERACTIVE);
+        CommandFuture write = write(0, 1, CommandScheduler.PRIORITY_BULK);
+        assertSame(write, scheduler.take());
+        assertSame(interactive, scheduler.take());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+import java.nio.ByteBuffer;
+import junit.framework.TestCase;
+
+/**
+ * Merging and overlay of {@link DirtyBlockMap}.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class DirtyBlockMapTest extends TestCase {
+
+    private static final int BLOCK_LENGTH = 8;
+    private DirtyBlockMap map;
+
+    protected void setUp() throws Exception {
+        map = new DirtyBlockMap(BLOCK_LENGTH, 4);
+    }
+
+    private void put(long lba, int value) {
+        byte[] data = new byte[BLOCK_LENGTH];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) value;
+        }
+        map.put(lba, 0, BLOCK_LENGTH, ByteBuffer.wrap(data), null, 0);
+    }
+
+    public void testAdjacentBlocksFormOneRun() {
+        put(7, 7);
+        put(5, 5);
+        put(6, 6);
+        put(9, 9);
+        byte[] dst = new byte[4 * BLOCK_LENGTH];
+        long[] lba = new long[1];
+        assertEquals(3, map.peekRun(4, dst, lba));
+        assertEquals(5, lba[0]);
+        assertEquals((byte) 5, dst[0]);
+        assertEquals((byte) 6, dst[BLOCK_LENGTH]);
+        assertEquals((byte) 7, dst[2 * BLOCK_LENGTH]);
+        // Peeking leaves the blocks dirty.
+        assertEquals(4, map.size());
+
+        map.remove(5, 3);
+        assertEquals(1, map.peekRun(4, dst, lba));
+        assertEquals(9, lba[0]);
+    }
+
+    public void testRunIsLimited() {
+        for (int i = 0; i < 4; i++) {
+            put(i, i);
+        }
+        long[] lba = new long[1];
+        assertEquals(2, map.peekRun(2, new byte[2 * BLOCK_LENGTH], lba));
+        assertEquals(0, lba[0]);
+    }
+
+    public void testPartialPutMergesWithBase() {
+        byte[] base = new byte[BLOCK_LENGTH];
+        for (int i = 0; i < base.length; i++) {
+            base[i] = 1;
+        }
+        map.put(3, 2, 2, ByteBuffer.wrap(new byte[]{9, 9}), base, 0);
+        ByteBuffer dst = ByteBuffer.allocate(BLOCK_LENGTH);
+        assertTrue(map.read(3, 0, BLOCK_LENGTH, dst));
+        byte[] expected = {1, 1, 9, 9, 1, 1, 1, 1};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], dst.get(i));
+        }
+        assertFalse(map.read(4, 0, 1, ByteBuffer.allocate(1)));
+    }
+
+    public void testOverlayIsRefusedAfterRemoval() {
+        put(2, 2);
+        assertTrue(map.contains(0, 4));
+        assertFalse(map.contains(3, 4));
+        int removals = map.getRemovalCount();
+        byte[] dst = new byte[4 * BLOCK_LENGTH];
+        assertTrue(map.overlay(0, 4, dst, 0, removals));
+        assertEquals((byte) 2, dst[2 * BLOCK_LENGTH]);
+        assertEquals((byte) 0, dst[BLOCK_LENGTH]);
+
+        map.remove(2, 1);
+        assertTrue(map.isEmpty());
+        assertFalse(map.overlay(0, 4, dst, 0, removals));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+import junit.framework.TestCase;
+
+/**
+ * Ordering of {@link FairCommandScheduler}.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class FairCommandSchedulerTest extends TestCase {
+
+    private FairCommandScheduler scheduler;
+
+    protected void setUp() throws Exception {
+        scheduler = new FairCommandScheduler(32);
+    }
+
+    private static CommandFuture command(int lun, int priority, long deadline, int length) {
+        CommandBlockWrapper cbw = new CommandBlockWrapper();
+        cbw.setCB(new byte[16]);
+        cbw.setLUN((byte) lun);
+        cbw.setDataTransferLength(length);
+        CommandFuture future = new CommandFuture(null);
+        future.reset(cbw, null, priority, deadline);
+        return future;
+    }
+
+    private CommandFuture offer(int lun, int priority, long deadline, int length) {
+        CommandFuture future = command(lun, priority, deadline, length);
+        assertTrue(scheduler.offer(future));
+        return future;
+    }
+
+    public void testHighestPriorityFirstWithinLun() throws Exception {
+        CommandFuture bulk = offer(0, CommandScheduler.PRIORITY_BULK, 0, 512);
+        CommandFuture normal = offer(0, CommandScheduler.PRIORITY_NORMAL, 0, 512);
+        CommandFuture interactive = offer(0, CommandScheduler.PRIORITY_INTERACTIVE, 0, 512);
+        assertSame(interactive, scheduler.take());
+        assertSame(normal, scheduler.take());
+        assertSame(bulk, scheduler.take());
+        assertEquals(0, scheduler.size());
+    }
+
+    public void testExpiredCommandPassesHigherPriority() throws Exception {
+        CommandFuture interactive = offer(0, CommandScheduler.PRIORITY_INTERACTIVE, 0, 512);
+        CommandFuture expired = offer(0, CommandScheduler.PRIORITY_BULK, 1, 512);
+        assertSame(expired, scheduler.take());
+        assertSame(interactive, scheduler.take());
+    }
+
+    public void testDefaultExpireAppliesWithoutDeadline() throws Exception {
+        scheduler.setExpire(-1000);
+        CommandFuture bulk = offer(0, CommandScheduler.PRIORITY_BULK, 0, 512);
+        scheduler.setExpire(FairCommandScheduler.DEFAULT_EXPIRE);
+        CommandFuture interactive = offer(0, CommandScheduler.PRIORITY_INTERACTIVE, 0, 512);
+        assertSame(bulk, scheduler.take());
+        assertSame(interactive, scheduler.take());
+    }
+
+    public void testLunsShareByTransferLength() throws Exception {
+        // Each large command costs a whole quantum, each small one a quarter.
+        scheduler.setQuantum(4096);
+        for (int i = 0; i < 3; i++) {
+            offer(0, CommandScheduler.PRIORITY_NORMAL, 0, 4096 - 512);
+        }
+        for (int i = 0; i < 8; i++) {
+            offer(1, CommandScheduler.PRIORITY_NORMAL, 0, 512);
+        }
+        assertEquals(3, scheduler.size(0));
+        assertEquals(8, scheduler.size(1));
+        int[] expected = {0, 1, 1, 1, 1, 0, 1, 1, 1, 1, 0};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("take " + i, expected[i], scheduler.take().getCommandBlock().getLUN());
+        }
+        assertEquals(0, scheduler.size());
+    }
+
+    public void testCommandLargerThanQuantumIsTaken() throws Exception {
+        scheduler.setQuantum(1024);
+        CommandFuture large = offer(2, CommandScheduler.PRIORITY_NORMAL, 0, 8192);
+        assertSame(large, scheduler.take());
+    }
+
+    public void testCapacityAndClose() throws Exception {
+        scheduler = new FairCommandScheduler(2);
+        offer(0, CommandScheduler.PRIORITY_NORMAL, 0, 0);
+        offer(1, CommandScheduler.PRIORITY_NORMAL, 0, 0);
+        assertFalse(scheduler.offer(command(0, CommandScheduler.PRIORITY_NORMAL, 0, 0)));
+        scheduler.close();
+        assertNull(scheduler.take());
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import junit.framework.TestCase;
+import org.squilla.usb.msd.emulator.EmulatedUsbDevice;
+import org.squilla.usb.msd.emulator.MassStorageEmulator;
+
+/**
+ * Write-back of {@link UsbBlockDevice} against a {@link MassStorageEmulator}.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class UsbBlockDeviceTest extends TestCase {
+
+    private static final int BLOCK_LENGTH = 512;
+    private static final int BLOCK_COUNT = 64;
+    private ByteBuffer image;
+    private MassStorageEmulator emulator;
+    private BulkOnlyTransport transport;
+    private UsbBlockDevice blockDevice;
+
+    protected void setUp() throws Exception {
+        image = ByteBuffer.allocate(BLOCK_LENGTH * BLOCK_COUNT);
+        emulator = new MassStorageEmulator(new ByteBuffer[]{image}, BLOCK_LENGTH);
+        EmulatedUsbDevice device = new EmulatedUsbDevice(emulator);
+        transport = new BulkOnlyTransport(device, device.getMassStorageInterface());
+        assertTrue(transport.open());
+        transport.start();
+        UsbSCSI usbSCSI = new UsbSCSI(transport);
+        blockDevice = new UsbBlockDevice(usbSCSI);
+        assertEquals(BLOCK_COUNT, blockDevice.getBlockCount());
+        // Only explicit flushes in these tests.
+        blockDevice.setWriteBackLimit(Integer.MAX_VALUE, 60 * 1000);
+        blockDevice.setWriteBack(true);
+    }
+
+    protected void tearDown() throws Exception {
+        blockDevice.close();
+        transport.close();
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 13 + seed);
+        }
+        return data;
+    }
+
+    private byte[] image(int offset, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = image.get(offset + i);
+        }
+        return data;
+    }
+
+    public void testReadsSeeUnflushedWrites() throws Exception {
+        byte[] data = pattern(BLOCK_LENGTH + 100, 1);
+        blockDevice.write(3 * BLOCK_LENGTH + 50, ByteBuffer.wrap(data));
+        assertTrue(Arrays.equals(new byte[data.length], image(3 * BLOCK_LENGTH + 50, data.length)));
+
+        ByteBuffer read = ByteBuffer.allocate(4 * BLOCK_LENGTH);
+        blockDevice.read(2 * BLOCK_LENGTH, read);
+        byte[] expected = new byte[4 * BLOCK_LENGTH];
+        System.arraycopy(data, 0, expected, BLOCK_LENGTH + 50, data.length);
+        assertTrue(Arrays.equals(expected, read.array()));
+    }
+
+    public void testFlushMergesAdjacentBlocks() throws Exception {
+        byte[] first = pattern(BLOCK_LENGTH, 2);
+        byte[] second = pattern(2 * BLOCK_LENGTH, 3);
+        // Written out of order; the flush sends blocks 10-12 together.
+        blockDevice.write(11 * BLOCK_LENGTH, ByteBuffer.wrap(second));
+        blockDevice.write(10 * BLOCK_LENGTH, ByteBuffer.wrap(first));
+        long commands = emulator.getCommandCount();
+        blockDevice.flush();
+        assertEquals(commands + 1, emulator.getCommandCount());
+        assertTrue(Arrays.equals(first, image(10 * BLOCK_LENGTH, BLOCK_LENGTH)));
+        assertTrue(Arrays.equals(second, image(11 * BLOCK_LENGTH, 2 * BLOCK_LENGTH)));
+
+        commands = emulator.getCommandCount();
+        blockDevice.flush();
+        assertEquals(commands, emulator.getCommandCount());
+    }
+
+    public void testPartialWriteKeepsDeviceContent() throws Exception {
+        byte[] old = pattern(BLOCK_LENGTH, 4);
+        image.position(5 * BLOCK_LENGTH);
+        image.put(old);
+        blockDevice.write(5 * BLOCK_LENGTH + 10, ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        blockDevice.flush();
+        old[10] = 1;
+        old[11] = 2;
+        old[12] = 3;
+        assertTrue(Arrays.equals(old, image(5 * BLOCK_LENGTH, BLOCK_LENGTH)));
+    }
+
+    public void testCloseFlushes() throws Exception {
+        byte[] data = pattern(2 * BLOCK_LENGTH, 5);
+        blockDevice.write(20 * BLOCK_LENGTH, ByteBuffer.wrap(data));
+        blockDevice.close();
+        assertTrue(Arrays.equals(data, image(20 * BLOCK_LENGTH, data.length)));
+    }
+
+    public void testWriteThroughAfterWriteBack() throws Exception {
+        byte[] data = pattern(BLOCK_LENGTH, 6);
+        blockDevice.write(30 * BLOCK_LENGTH, ByteBuffer.wrap(data));
+        blockDevice.setWriteBack(false);
+        blockDevice.flush();
+        assertTrue(Arrays.equals(data, image(30 * BLOCK_LENGTH, BLOCK_LENGTH)));
+
+        byte[] next = pattern(BLOCK_LENGTH, 7);
+        blockDevice.write(31 * BLOCK_LENGTH, ByteBuffer.wrap(next));
+        assertTrue(Arrays.equals(next, image(31 * BLOCK_LENGTH, BLOCK_LENGTH)));
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd.emulator;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+import javax.usb.UsbConfiguration;
+import javax.usb.UsbConfigurationDescriptor;
+import javax.usb.UsbConst;
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbDevice;
+import javax.usb.UsbDeviceDescriptor;
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+import javax.usb.UsbInterface;
+import javax.usb.UsbPort;
+import javax.usb.UsbStallException;
+import javax.usb.UsbStringDescriptor;
+import javax.usb.event.UsbDeviceEvent;
+import javax.usb.event.UsbDeviceListener;
+import javax.usb.util.DefaultUsbControlIrp;
+
+/**
+ * Software stand-in for a USB flash drive, for tests without
+ * hardware. The device has one configuration with one Bulk-Only
+ * mass storage interface, served by a {@link MassStorageEmulator}.
+ * <p>
+ * It is not connected to any hub; pass {@link #getMassStorageInterface()}
+ * to {@link org.squilla.usb.msd.BulkOnlyTransport} or to
+ * {@link org.squilla.usb.msd.BulkOnlyTransportDriver#attach(UsbDevice, UsbInterface)}.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class EmulatedUsbDevice implements UsbDevice {
+
+    public static final short DEFAULT_VENDOR_ID = (short) 0xFFFF;
+    public static final short DEFAULT_PRODUCT_ID = 0x0001;
+    private static final byte STRING_MANUFACTURER = 1;
+    private static final byte STRING_PRODUCT = 2;
+    private static final byte STRING_SERIAL_NUMBER = 3;
+    private MassStorageEmulator emulator;
+    private UsbDeviceDescriptor deviceDescriptor;
+    private Configuration configuration;
+    private String[] strings;
+    private Vector listeners;
+    private volatile boolean disconnected;
+
+    public EmulatedUsbDevice(MassStorageEmulator emulator) {
+        this(emulator, DEFAULT_VENDOR_ID, DEFAULT_PRODUCT_ID, "000000000001");
+    }
+
+    public EmulatedUsbDevice(MassStorageEmulator emulator, final short vendorId, final short productId,
+            String serialNumber) {
+        this.emulator = emulator;
+        strings = new String[]{null, "Squilla", "USB Mass Storage Emulator", serialNumber};
+        listeners = new Vector();
+        deviceDescriptor = new UsbDeviceDescriptor() {
+
+            public byte bLength() {
+                return 18;
+            }
+
+            public byte bDescriptorType() {
+                return UsbConst.DESCRIPTOR_TYPE_DEVICE;
+            }
+
+            public short bcdUSB() {
+                return 0x0200;
+            }
+
+            public byte bDeviceClass() {
+                // Defined by the interface
+                return 0;
+            }
+
+            public byte bDeviceSubClass() {
+                return 0;
+            }
+
+            public byte bDeviceProtocol() {
+                return 0;
+            }
+
+            public byte bMaxPacketSize0() {
+                return 64;
+            }
+
+            public short idVendor() {
+                return vendorId;
+            }
+
+            public short idProduct() {
+                return productId;
+            }
+
+            public short bcdDevice() {
+                return 0x0100;
+            }
+
+            public byte iManufacturer() {
+                return STRING_MANUFACTURER;
+            }
+
+            public byte iProduct() {
+                return STRING_PRODUCT;
+            }
+
+            public byte iSerialNumber() {
+                return STRING_SERIAL_NUMBER;
+            }
+
+            public byte bNumConfigurations() {
+                return 1;
+            }
+        };
+        configuration = new Configuration();
+    }
+
+    public MassStorageEmulator getEmulator() {
+        return emulator;
+    }
+
+    public UsbInterface getMassStorageInterface() {
+        return configuration.usbInterface;
+    }
+
+    /**
+     * Unplugs the device: aborts all transfers and notifies the device listeners.
+     */
+    public void disconnect() {
+        if (disconnected) {
+            return;
+        }
+        disconnected = true;
+        List endpoints = configuration.usbInterface.getUsbEndpoints();
+        for (int i = 0; i < endpoints.size(); i++) {
+            EmulatedUsbEndpoint ep = (EmulatedUsbEndpoint) endpoints.get(i);
+            ep.getUsbPipe().abortAllSubmissions();
+        }
+        Object[] l = listeners.toArray();
+        for (int i = 0; i < l.length; i++) {
+            ((UsbDeviceListener) l[i]).usbDeviceDetached(new UsbDeviceEvent(this));
+        }
+    }
+
+    public UsbPort getParentUsbPort() {
+        return null;
+    }
+
+    public boolean isUsbHub() {
+        return false;
+    }
+
+    public String getManufacturerString() {
+        return strings[STRING_MANUFACTURER];
+    }
+
+    public String getSerialNumberString() {
+        return strings[STRING_SERIAL_NUMBER];
+    }
+
+    public String getProductString() {
+        return strings[STRING_PRODUCT];
+    }
+
+    public Object getSpeed() {
+        return UsbConst.DEVICE_SPEED_FULL;
+    }
+
+    public List getUsbConfigurations() {
+        return Collections.singletonList(configuration);
+    }
+
+    public UsbConfiguration getUsbConfiguration(byte number) {
+        return number == 1 ? configuration : null;
+    }
+
+    public boolean containsUsbConfiguration(byte number) {
+        return number == 1;
+    }
+
+    public byte getActiveUsbConfigurationNumber() {
+        return 1;
+    }
+
+    public UsbConfiguration getActiveUsbConfiguration() {
+        return configuration;
+    }
+
+    public boolean isConfigured() {
+        return true;
+    }
+
+    public UsbDeviceDescriptor getUsbDeviceDescriptor() {
+        return deviceDescriptor;
+    }
+
+    public UsbStringDescriptor getUsbStringDescriptor(byte index) throws UsbException {
+        final String s = getString(index);
+        return new UsbStringDescriptor() {
+
+            public byte bLength() {
+                return (byte) (2 + s.length() * 2);
+            }
+
+            public byte bDescriptorType() {
+                return UsbConst.DESCRIPTOR_TYPE_STRING;
+            }
+
+            public byte[] bString() {
+                try {
+                    return s.getBytes("UTF-16LE");
+                } catch (UnsupportedEncodingException ex) {
+                    // Every JVM supports UTF-16LE.
+                    throw new IllegalStateException(ex.toString());
+                }
+            }
+
+            public String getString() {
+                return s;
+            }
+        };
+    }
+
+    public String getString(byte index) throws UsbException {
+        if (index <= 0 || index >= strings.length) {
+            throw new UsbStallException("No string descriptor: " + index);
+        }
+        return strings[index];
+    }
+
+    public void syncSubmit(UsbControlIrp irp) throws UsbException {
+        checkConnected();
+        try {
+            irp.setActualLength(emulator.control(irp));
+        } catch (UsbException ex) {
+            irp.setUsbException(ex);
+        }
+        irp.complete();
+        if (irp.isUsbException()) {
+            throw irp.getUsbException();
+        }
+    }
+
+    public void asyncSubmit(UsbControlIrp irp) {
+        try {
+            syncSubmit(irp);
+        } catch (UsbException ex) {
+            // Reported through the IRP.
+        }
+    }
+
+    public void syncSubmit(List list) throws UsbException {
+        for (int i = 0; i < list.size(); i++) {
+            syncSubmit((UsbControlIrp) list.get(i));
+        }
+    }
+
+    public void asyncSubmit(List list) {
+        for (int i = 0; i < list.size(); i++) {
+            asyncSubmit((UsbControlIrp) list.get(i));
+        }
+    }
+
+    public UsbControlIrp createUsbControlIrp(byte bmRequestType, byte bRequest, short wValue, short wIndex) {
+        return new DefaultUsbControlIrp(bmRequestType, bRequest, wValue, wIndex);
+    }
+
+    public void addUsbDeviceListener(UsbDeviceListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeUsbDeviceListener(UsbDeviceListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void checkConnected() {
+        if (disconnected) {
+            throw new UsbDisconnectedException("Device is disconnected");
+        }
+    }
+
+    private class Configuration implements UsbConfiguration {
+
+        private EmulatedUsbInterface usbInterface;
+        private UsbConfigurationDescriptor descriptor;
+
+        private Configuration() {
+            usbInterface = new EmulatedUsbInterface(this, emulator);
+            descriptor = new UsbConfigurationDescriptor() {
+
+                public byte bLength() {
+                    return 9;
+                }
+
+                public byte bDescriptorType() {
+                    return UsbConst.DESCRIPTOR_TYPE_CONFIGURATION;
+                }
+
+                public short wTotalLength() {
+                    // Configuration, interface and two endpoints
+                    return 9 + 9 + 7 + 7;
+                }
+
+                public byte bNumInterfaces() {
+                    return 1;
+                }
+
+                public byte bConfigurationValue() {
+                    return 1;
+                }
+
+                public byte iConfiguration() {
+                    return 0;
+                }
+
+                public byte bmAttributes() {
+                    // Bus powered
+                    return (byte) 0x80;
+                }
+
+                public byte bMaxPower() {
+                    // 100 mA
+                    return 50;
+                }
+            };
+        }
+
+        public boolean isActive() {
+            return true;
+        }
+
+        public List getUsbInterfaces() {
+            return Collections.singletonList(usbInterface);
+        }
+
+        public UsbInterface getUsbInterface(byte number) {
+            return number == 0 ? usbInterface : null;
+        }
+
+        public boolean containsUsbInterface(byte number) {
+            return number == 0;
+        }
+
+        public UsbDevice getUsbDevice() {
+            return EmulatedUsbDevice.this;
+        }
+
+        public UsbConfigurationDescriptor getUsbConfigurationDescriptor() {
+            return descriptor;
+        }
+
+        public String getConfigurationString() {
+            return null;
+        }
+    }
+}
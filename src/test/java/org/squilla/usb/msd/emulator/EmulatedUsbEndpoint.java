@@ -0,0 +1,86 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd.emulator;
+
+import javax.usb.UsbConst;
+import javax.usb.UsbEndpoint;
+import javax.usb.UsbEndpointDescriptor;
+import javax.usb.UsbInterface;
+import javax.usb.UsbPipe;
+
+/**
+ * Bulk endpoint of an {@link EmulatedUsbInterface}.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class EmulatedUsbEndpoint implements UsbEndpoint {
+
+    private static final short MAX_PACKET_SIZE = 512;
+    private EmulatedUsbInterface usbInterface;
+    private UsbEndpointDescriptor descriptor;
+    private EmulatedUsbPipe pipe;
+
+    EmulatedUsbEndpoint(EmulatedUsbInterface usbInterface, final byte address, MassStorageEmulator emulator) {
+        this.usbInterface = usbInterface;
+        descriptor = new UsbEndpointDescriptor() {
+
+            public byte bLength() {
+                return 7;
+            }
+
+            public byte bDescriptorType() {
+                return UsbConst.DESCRIPTOR_TYPE_ENDPOINT;
+            }
+
+            public byte bEndpointAddress() {
+                return address;
+            }
+
+            public byte bmAttributes() {
+                return UsbConst.ENDPOINT_TYPE_BULK;
+            }
+
+            public short wMaxPacketSize() {
+                return MAX_PACKET_SIZE;
+            }
+
+            public byte bInterval() {
+                return 0;
+            }
+        };
+        pipe = new EmulatedUsbPipe(this, emulator);
+    }
+
+    public UsbInterface getUsbInterface() {
+        return usbInterface;
+    }
+
+    public UsbEndpointDescriptor getUsbEndpointDescriptor() {
+        return descriptor;
+    }
+
+    public byte getDirection() {
+        return (byte) (descriptor.bEndpointAddress() & UsbConst.ENDPOINT_DIRECTION_MASK);
+    }
+
+    public byte getType() {
+        return (byte) (descriptor.bmAttributes() & UsbConst.ENDPOINT_TYPE_MASK);
+    }
+
+    public UsbPipe getUsbPipe() {
+        return pipe;
+    }
+}
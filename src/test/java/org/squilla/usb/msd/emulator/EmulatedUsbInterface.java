@@ -0,0 +1,171 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd.emulator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.usb.UsbClaimException;
+import javax.usb.UsbConfiguration;
+import javax.usb.UsbConst;
+import javax.usb.UsbEndpoint;
+import javax.usb.UsbInterface;
+import javax.usb.UsbInterfaceDescriptor;
+import javax.usb.UsbInterfacePolicy;
+
+/**
+ * Mass storage interface of an {@link EmulatedUsbDevice}:
+ * SCSI transparent command set over Bulk-Only Transport, with one
+ * bulk-in and one bulk-out endpoint.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class EmulatedUsbInterface implements UsbInterface {
+
+    public static final byte CLASS_MASS_STORAGE = 0x08;
+    public static final byte SUBCLASS_SCSI = 0x06;
+    public static final byte PROTOCOL_BULK_ONLY = 0x50;
+    private UsbConfiguration configuration;
+    private UsbInterfaceDescriptor descriptor;
+    private List endpoints;
+    private boolean claimed;
+
+    EmulatedUsbInterface(UsbConfiguration configuration, MassStorageEmulator emulator) {
+        this.configuration = configuration;
+        descriptor = new UsbInterfaceDescriptor() {
+
+            public byte bLength() {
+                return 9;
+            }
+
+            public byte bDescriptorType() {
+                return UsbConst.DESCRIPTOR_TYPE_INTERFACE;
+            }
+
+            public byte bInterfaceNumber() {
+                return 0;
+            }
+
+            public byte bAlternateSetting() {
+                return 0;
+            }
+
+            public byte bNumEndpoints() {
+                return 2;
+            }
+
+            public byte bInterfaceClass() {
+                return CLASS_MASS_STORAGE;
+            }
+
+            public byte bInterfaceSubClass() {
+                return SUBCLASS_SCSI;
+            }
+
+            public byte bInterfaceProtocol() {
+                return PROTOCOL_BULK_ONLY;
+            }
+
+            public byte iInterface() {
+                return 0;
+            }
+        };
+        List list = new ArrayList();
+        list.add(new EmulatedUsbEndpoint(this, MassStorageEmulator.BULK_IN_ADDRESS, emulator));
+        list.add(new EmulatedUsbEndpoint(this, MassStorageEmulator.BULK_OUT_ADDRESS, emulator));
+        endpoints = Collections.unmodifiableList(list);
+    }
+
+    public synchronized void claim() throws UsbClaimException {
+        if (claimed) {
+            throw new UsbClaimException("Interface is already claimed");
+        }
+        claimed = true;
+    }
+
+    public void claim(UsbInterfacePolicy policy) throws UsbClaimException {
+        claim();
+    }
+
+    public synchronized void release() throws UsbClaimException {
+        if (!claimed) {
+            throw new UsbClaimException("Interface is not claimed");
+        }
+        claimed = false;
+    }
+
+    public synchronized boolean isClaimed() {
+        return claimed;
+    }
+
+    public boolean isActive() {
+        return true;
+    }
+
+    public int getNumSettings() {
+        return 1;
+    }
+
+    public byte getActiveSettingNumber() {
+        return 0;
+    }
+
+    public UsbInterface getActiveSetting() {
+        return this;
+    }
+
+    public UsbInterface getSetting(byte number) {
+        return number == 0 ? this : null;
+    }
+
+    public boolean containsSetting(byte number) {
+        return number == 0;
+    }
+
+    public List getSettings() {
+        return Collections.singletonList(this);
+    }
+
+    public List getUsbEndpoints() {
+        return endpoints;
+    }
+
+    public UsbEndpoint getUsbEndpoint(byte address) {
+        for (int i = 0; i < endpoints.size(); i++) {
+            UsbEndpoint ep = (UsbEndpoint) endpoints.get(i);
+            if (ep.getUsbEndpointDescriptor().bEndpointAddress() == address) {
+                return ep;
+            }
+        }
+        return null;
+    }
+
+    public boolean containsUsbEndpoint(byte address) {
+        return getUsbEndpoint(address) != null;
+    }
+
+    public UsbConfiguration getUsbConfiguration() {
+        return configuration;
+    }
+
+    public UsbInterfaceDescriptor getUsbInterfaceDescriptor() {
+        return descriptor;
+    }
+
+    public String getInterfaceString() {
+        return null;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd.emulator;
+
+import java.util.List;
+import java.util.Vector;
+import javax.usb.UsbAbortException;
+import javax.usb.UsbConst;
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbEndpoint;
+import javax.usb.UsbException;
+import javax.usb.UsbIrp;
+import javax.usb.UsbNotClaimedException;
+import javax.usb.UsbNotOpenException;
+import javax.usb.UsbPipe;
+import javax.usb.event.UsbPipeDataEvent;
+import javax.usb.event.UsbPipeErrorEvent;
+import javax.usb.event.UsbPipeListener;
+import javax.usb.util.DefaultUsbControlIrp;
+import javax.usb.util.DefaultUsbIrp;
+
+/**
+ * Bulk pipe of an {@link EmulatedUsbDevice}.
+ * Submissions are executed in order by a worker thread of the pipe;
+ * a sync submission is an async one followed by a wait.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class EmulatedUsbPipe implements UsbPipe, Runnable {
+
+    private EmulatedUsbEndpoint endpoint;
+    private MassStorageEmulator emulator;
+    private Vector submissions;
+    private Vector listeners;
+    private Thread worker;
+    private boolean open;
+    private volatile int abortGeneration;
+
+    EmulatedUsbPipe(EmulatedUsbEndpoint endpoint, MassStorageEmulator emulator) {
+        this.endpoint = endpoint;
+        this.emulator = emulator;
+        submissions = new Vector();
+        listeners = new Vector();
+    }
+
+    public void open() throws UsbException {
+        if (!endpoint.getUsbInterface().isClaimed()) {
+            throw new UsbNotClaimedException("Interface is not claimed");
+        }
+        synchronized (submissions) {
+            if (open) {
+                return;
+            }
+            open = true;
+            worker = new Thread(this, EmulatedUsbPipe.class.getName());
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    public void close() {
+        synchronized (submissions) {
+            if (!open) {
+                throw new UsbNotOpenException("Pipe is not open");
+            }
+            open = false;
+            submissions.notifyAll();
+        }
+        abortAllSubmissions();
+    }
+
+    public boolean isActive() {
+        return true;
+    }
+
+    public boolean isOpen() {
+        synchronized (submissions) {
+            return open;
+        }
+    }
+
+    public UsbEndpoint getUsbEndpoint() {
+        return endpoint;
+    }
+
+    int getAbortGeneration() {
+        return abortGeneration;
+    }
+
+    public int syncSubmit(byte[] data) throws UsbException {
+        UsbIrp irp = new DefaultUsbIrp(data);
+        syncSubmit(irp);
+        return irp.getActualLength();
+    }
+
+    public UsbIrp asyncSubmit(byte[] data) throws UsbException {
+        UsbIrp irp = new DefaultUsbIrp(data);
+        asyncSubmit(irp);
+        return irp;
+    }
+
+    public void syncSubmit(UsbIrp irp) throws UsbException {
+        asyncSubmit(irp);
+        irp.waitUntilComplete();
+        if (irp.isUsbException()) {
+            throw irp.getUsbException();
+        }
+    }
+
+    public void asyncSubmit(UsbIrp irp) {
+        synchronized (submissions) {
+            if (!open) {
+                throw new UsbNotOpenException("Pipe is not open");
+            }
+            submissions.add(irp);
+            submissions.notifyAll();
+        }
+    }
+
+    public void syncSubmit(List list) throws UsbException {
+        asyncSubmit(list);
+        for (int i = 0; i < list.size(); i++) {
+            UsbIrp irp = (UsbIrp) list.get(i);
+            irp.waitUntilComplete();
+            if (irp.isUsbException()) {
+                throw irp.getUsbException();
+            }
+        }
+    }
+
+    public void asyncSubmit(List list) {
+        for (int i = 0; i < list.size(); i++) {
+            asyncSubmit((UsbIrp) list.get(i));
+        }
+    }
+
+    public void abortAllSubmissions() {
+        Object[] aborted;
+        synchronized (submissions) {
+            abortGeneration++;
+            aborted = submissions.toArray();
+            submissions.clear();
+        }
+        // Wake up the submission in progress, it fails on the new generation.
+        emulator.wakeUp();
+        for (int i = 0; i < aborted.length; i++) {
+            UsbIrp irp = (UsbIrp) aborted[i];
+            irp.setUsbException(new UsbAbortException("Submission aborted"));
+            complete(irp);
+        }
+    }
+
+    public UsbIrp createUsbIrp() {
+        return new DefaultUsbIrp();
+    }
+
+    public UsbControlIrp createUsbControlIrp(byte bmRequestType, byte bRequest, short wValue, short wIndex) {
+        return new DefaultUsbControlIrp(bmRequestType, bRequest, wValue, wIndex);
+    }
+
+    public void addUsbPipeListener(UsbPipeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeUsbPipeListener(UsbPipeListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void run() {
+        while (true) {
+            UsbIrp irp;
+            int generation;
+            synchronized (submissions) {
+                while (open && submissions.isEmpty()) {
+                    try {
+                        submissions.wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (!open) {
+                    return;
+                }
+                irp = (UsbIrp) submissions.remove(0);
+                generation = abortGeneration;
+            }
+            try {
+                int actualLength;
+                if (endpoint.getDirection() == UsbConst.ENDPOINT_DIRECTION_IN) {
+                    actualLength = emulator.bulkIn(this, generation, irp.getData(), irp.getOffset(), irp.getLength());
+                } else {
+                    actualLength = emulator.bulkOut(this, generation, irp.getData(), irp.getOffset(), irp.getLength());
+                }
+                irp.setActualLength(actualLength);
+            } catch (UsbException ex) {
+                irp.setUsbException(ex);
+            }
+            complete(irp);
+        }
+    }
+
+    private void complete(UsbIrp irp) {
+        irp.complete();
+        Object[] l = listeners.toArray();
+        for (int i = 0; i < l.length; i++) {
+            if (irp.isUsbException()) {
+                ((UsbPipeListener) l[i]).errorEventOccurred(new UsbPipeErrorEvent(this, irp));
+            } else {
+                ((UsbPipeListener) l[i]).dataEventOccurred(new UsbPipeDataEvent(this, irp));
+            }
+        }
+    }
+}
@@ -0,0 +1,563 @@
+/*
+ * Copyright 2011 Shotaro Uchida <fantom@xmaker.mx>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squilla.usb.msd.emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import javax.usb.UsbAbortException;
+import javax.usb.UsbConst;
+import javax.usb.UsbControlIrp;
+import javax.usb.UsbException;
+import javax.usb.UsbStallException;
+import org.squilla.usb.msd.BulkOnlyTransport;
+import org.squilla.usb.msd.UsbSCSI;
+
+/**
+ * Device side of a Bulk-Only mass storage function, serving SCSI block
+ * commands from image buffers, one per LUN. Images are usually files
+ * mapped with {@link #map(File)}.
+ * <p>
+ * Bulk transfers block while the device has nothing to exchange in their
+ * direction, like a NAK on the bus, so pipelined submissions behave as on
+ * real hardware. Every phase can be delayed, and STALLs can be injected
+ * into the command, data and status phases.
+ *
+ * @author Shotaro Uchida <fantom@xmaker.mx>
+ */
+public class MassStorageEmulator {
+
+    public static final int PHASE_COMMAND = 0;
+    public static final int PHASE_DATA = 1;
+    public static final int PHASE_STATUS = 2;
+    public static final int DEFAULT_BLOCK_LENGTH = 512;
+    public static final byte BULK_IN_ADDRESS = (byte) 0x81;
+    public static final byte BULK_OUT_ADDRESS = 0x02;
+    private static final int STATE_COMMAND = 0;
+    private static final int STATE_DATA_IN = 1;
+    private static final int STATE_DATA_OUT = 2;
+    private static final int STATE_STATUS = 3;
+    private static final int CBW_SIGNATURE = 0x43425355;
+    private static final int CSW_SIGNATURE = 0x53425355;
+    private static final int CBW_LENGTH = 31;
+    private static final int CSW_LENGTH = 13;
+    private static final byte STATUS_PASSED = 0x00;
+    private static final byte STATUS_FAILED = 0x01;
+    private static final byte STATUS_PHASE_ERROR = 0x02;
+    private static final byte SENSE_NO_SENSE = 0x00;
+    private static final byte SENSE_ILLEGAL_REQUEST = 0x05;
+    private static final byte SENSE_DATA_PROTECT = 0x07;
+    private static final byte ASC_INVALID_OPCODE = 0x20;
+    private static final byte ASC_LBA_OUT_OF_RANGE = 0x21;
+    private static final byte ASC_INVALID_FIELD = 0x24;
+    private static final byte ASC_LUN_NOT_SUPPORTED = 0x25;
+    private static final byte ASC_WRITE_PROTECTED = 0x27;
+    private static final int SENSE_LENGTH = 18;
+    private static final int INQUIRY_LENGTH = 36;
+    private static final int RESPONSE_BUFFER_SIZE = 64;
+    private ByteBuffer[] images;
+    private ByteBuffer[] views;
+    private int blockLength;
+    private int state;
+    private boolean inHalted;
+    private boolean outHalted;
+    private boolean invalidCommand;
+    // Current command
+    private byte[] cb;
+    private int tag;
+    private int expectedLength;
+    private boolean hostIn;
+    private int lun;
+    private long position;
+    private boolean mediumTransfer;
+    private int deviceLength;
+    private int residue;
+    private byte status;
+    private byte[] response;
+    // Sense of the last failed command
+    private byte senseKey;
+    private byte additionalSenseCode;
+    private long[] latencies;
+    private int[] stalls;
+    private boolean stallGetMaxLUN;
+    private long commandCount;
+
+    /**
+     * @param image the medium of LUN 0, with a multiple of 512 bytes
+     */
+    public MassStorageEmulator(ByteBuffer image) {
+        this(new ByteBuffer[]{image}, DEFAULT_BLOCK_LENGTH);
+    }
+
+    /**
+     * @param images the medium of each LUN, up to 16
+     * @param blockLength the logical block length
+     */
+    public MassStorageEmulator(ByteBuffer[] images, int blockLength) {
+        if (images.length == 0 || images.length > 16) {
+            throw new IllegalArgumentException("LUN count: " + images.length);
+        }
+        this.images = images;
+        this.blockLength = blockLength;
+        views = new ByteBuffer[images.length];
+        for (int i = 0; i < images.length; i++) {
+            views[i] = images[i].duplicate();
+        }
+        cb = new byte[16];
+        response = new byte[RESPONSE_BUFFER_SIZE];
+        latencies = new long[3];
+        stalls = new int[3];
+        state = STATE_COMMAND;
+    }
+
+    /**
+     * Maps an image file for reading and writing.
+     */
+    public static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            raf.close();
+        }
+    }
+
+    public int getBlockLength() {
+        return blockLength;
+    }
+
+    public int getLunCount() {
+        return images.length;
+    }
+
+    public long getBlockCount(int lun) {
+        return images[lun].capacity() / blockLength;
+    }
+
+    public synchronized long getCommandCount() {
+        return commandCount;
+    }
+
+    /**
+     * Delays every transfer of the phase.
+     * @param phase one of the PHASE constants
+     */
+    public synchronized void setLatency(int phase, long millis) {
+        latencies[phase] = millis;
+    }
+
+    public synchronized long getLatency(int phase) {
+        return latencies[phase];
+    }
+
+    /**
+     * STALLs the next count transfers of the phase.
+     * A stalled data phase ends with a CSW reporting the whole length as residue.
+     */
+    public synchronized void injectStall(int phase, int count) {
+        stalls[phase] += count;
+    }
+
+    /**
+     * Makes Get Max LUN STALL, as single LUN devices may do.
+     */
+    public synchronized void setStallGetMaxLUN(boolean stall) {
+        stallGetMaxLUN = stall;
+    }
+
+    public synchronized boolean isHalted(byte endpointAddress) {
+        return endpointAddress == BULK_IN_ADDRESS ? inHalted : outHalted;
+    }
+
+    /**
+     * Wakes up transfers waiting for the device, e.g. after an abort.
+     */
+    synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    synchronized int bulkOut(EmulatedUsbPipe pipe, int generation, byte[] data, int offset, int length)
+            throws UsbException {
+        while (true) {
+            checkAbort(pipe, generation);
+            if (outHalted) {
+                throw new UsbStallException("Bulk-out halted");
+            }
+            if (state == STATE_COMMAND || state == STATE_DATA_OUT) {
+                break;
+            }
+            waitDevice();
+        }
+        if (state == STATE_COMMAND) {
+            delay(PHASE_COMMAND, pipe, generation);
+            if (consumeStall(PHASE_COMMAND)) {
+                outHalted = true;
+                throw new UsbStallException("Injected STALL in command phase");
+            }
+            receiveCommand(data, offset, length);
+            notifyAll();
+            return length;
+        }
+        delay(PHASE_DATA, pipe, generation);
+        if (consumeStall(PHASE_DATA)) {
+            outHalted = true;
+            residue = expectedLength;
+            state = STATE_STATUS;
+            notifyAll();
+            throw new UsbStallException("Injected STALL in data-out phase");
+        }
+        int n = Math.min(length, deviceLength);
+        if (mediumTransfer) {
+            ByteBuffer view = views[lun];
+            view.limit((int) position + n);
+            view.position((int) position);
+            view.put(data, offset, n);
+        }
+        residue = expectedLength - n;
+        state = STATE_STATUS;
+        notifyAll();
+        return Math.min(length, expectedLength);
+    }
+
+    synchronized int bulkIn(EmulatedUsbPipe pipe, int generation, byte[] data, int offset, int length)
+            throws UsbException {
+        while (true) {
+            checkAbort(pipe, generation);
+            if (inHalted) {
+                throw new UsbStallException("Bulk-in halted");
+            }
+            if (state == STATE_DATA_IN || state == STATE_STATUS) {
+                break;
+            }
+            waitDevice();
+        }
+        if (state == STATE_DATA_IN) {
+            delay(PHASE_DATA, pipe, generation);
+            if (consumeStall(PHASE_DATA)) {
+                inHalted = true;
+                residue = expectedLength;
+                state = STATE_STATUS;
+                notifyAll();
+                throw new UsbStallException("Injected STALL in data-in phase");
+            }
+            int n = Math.min(length, deviceLength);
+            if (mediumTransfer) {
+                ByteBuffer view = views[lun];
+                view.limit((int) position + n);
+                view.position((int) position);
+                view.get(data, offset, n);
+            } else {
+                System.arraycopy(response, 0, data, offset, n);
+            }
+            residue = expectedLength - n;
+            state = STATE_STATUS;
+            notifyAll();
+            return n;
+        }
+        delay(PHASE_STATUS, pipe, generation);
+        if (consumeStall(PHASE_STATUS)) {
+            // The CSW is sent after the host clears the halt.
+            inHalted = true;
+            throw new UsbStallException("Injected STALL in status phase");
+        }
+        if (length < CSW_LENGTH) {
+            throw new UsbException("Buffer too small for CSW");
+        }
+        putInt32LE(data, offset, CSW_SIGNATURE);
+        putInt32LE(data, offset + 4, tag);
+        putInt32LE(data, offset + 8, residue);
+        data[offset + 12] = status;
+        state = STATE_COMMAND;
+        notifyAll();
+        return CSW_LENGTH;
+    }
+
+    synchronized int control(UsbControlIrp irp) throws UsbException {
+        int type = irp.bmRequestType() & 0x60;
+        int recipient = irp.bmRequestType() & 0x1F;
+        byte request = irp.bRequest();
+        if (type == UsbConst.REQUESTTYPE_TYPE_CLASS && recipient == UsbConst.REQUESTTYPE_RECIPIENT_INTERFACE) {
+            if (request == BulkOnlyTransport.REQUEST_GET_MAX_LUN) {
+                if (stallGetMaxLUN) {
+                    throw new UsbStallException("Get Max LUN not supported");
+                }
+                irp.getData()[irp.getOffset()] = (byte) (images.length - 1);
+                return 1;
+            }
+            if (request == BulkOnlyTransport.REQUEST_MASS_STORAGE_RESET) {
+                // Halts stay until the host clears them.
+                state = STATE_COMMAND;
+                invalidCommand = false;
+                notifyAll();
+                return 0;
+            }
+        }
+        if (type == UsbConst.REQUESTTYPE_TYPE_STANDARD
+                && recipient == UsbConst.REQUESTTYPE_RECIPIENT_ENDPOINT
+                && request == UsbConst.REQUEST_CLEAR_FEATURE
+                && irp.wValue() == UsbConst.FEATURE_SELECTOR_ENDPOINT_HALT) {
+            if (invalidCommand) {
+                // Only a reset recovers from an invalid CBW.
+                return 0;
+            }
+            byte address = (byte) irp.wIndex();
+            if (address == BULK_IN_ADDRESS) {
+                inHalted = false;
+            } else if (address == BULK_OUT_ADDRESS) {
+                outHalted = false;
+            } else {
+                throw new UsbStallException("No such endpoint: " + address);
+            }
+            notifyAll();
+            return 0;
+        }
+        throw new UsbStallException("Unsupported request: " + request);
+    }
+
+    private void receiveCommand(byte[] data, int offset, int length) {
+        if (length != CBW_LENGTH || getInt32LE(data, offset) != CBW_SIGNATURE) {
+            invalidCommand = true;
+            inHalted = true;
+            outHalted = true;
+            return;
+        }
+        commandCount++;
+        tag = getInt32LE(data, offset + 4);
+        expectedLength = getInt32LE(data, offset + 8);
+        hostIn = (data[offset + 12] & 0x80) != 0;
+        lun = data[offset + 13] & 0x0F;
+        int cbLength = Math.min(data[offset + 14] & 0x1F, cb.length);
+        for (int i = 0; i < cb.length; i++) {
+            cb[i] = i < cbLength ? data[offset + 15 + i] : 0;
+        }
+        mediumTransfer = false;
+        deviceLength = 0;
+        residue = expectedLength;
+        execute();
+        if (expectedLength == 0) {
+            if (deviceLength > 0) {
+                status = STATUS_PHASE_ERROR;
+            }
+            state = STATE_STATUS;
+            return;
+        }
+        state = hostIn ? STATE_DATA_IN : STATE_DATA_OUT;
+    }
+
+    private boolean isDeviceIn() {
+        switch (cb[0]) {
+        case UsbSCSI.OPCODE_WRITE_10:
+        case UsbSCSI.OPCODE_WRITE_16:
+            return false;
+        default:
+            return true;
+        }
+    }
+
+    private void execute() {
+        status = STATUS_PASSED;
+        if (lun >= images.length && cb[0] != UsbSCSI.OPCODE_REQUEST_SENSE && cb[0] != UsbSCSI.OPCODE_INQUIRY) {
+            fail(SENSE_ILLEGAL_REQUEST, ASC_LUN_NOT_SUPPORTED);
+            return;
+        }
+        switch (cb[0]) {
+        case UsbSCSI.OPCODE_TEST_UNIT_READY:
+            break;
+        case UsbSCSI.OPCODE_REQUEST_SENSE:
+            clearResponse(SENSE_LENGTH);
+            response[0] = 0x70;
+            response[2] = senseKey;
+            response[7] = SENSE_LENGTH - 8;
+            response[12] = additionalSenseCode;
+            respond(SENSE_LENGTH, cb[4] & 0xFF);
+            senseKey = SENSE_NO_SENSE;
+            additionalSenseCode = 0;
+            break;
+        case UsbSCSI.OPCODE_INQUIRY:
+            clearResponse(INQUIRY_LENGTH);
+            // Direct access block device, removable, SPC-2
+            response[0] = (byte) (lun < images.length ? 0x00 : 0x7F);
+            response[1] = (byte) 0x80;
+            response[2] = 0x04;
+            response[3] = 0x02;
+            response[4] = INQUIRY_LENGTH - 5;
+            putAscii(response, 8, "SQUILLA ");
+            putAscii(response, 16, "MSD EMULATOR    ");
+            putAscii(response, 32, "1.0 ");
+            respond(INQUIRY_LENGTH, ((cb[3] & 0xFF) << 8) | (cb[4] & 0xFF));
+            break;
+        case UsbSCSI.OPCODE_MODE_SENSE_6:
+            clearResponse(4);
+            response[0] = 3;
+            response[2] = (byte) (images[lun].isReadOnly() ? 0x80 : 0x00);
+            respond(4, cb[4] & 0xFF);
+            break;
+        case UsbSCSI.OPCODE_READ_CAPACITY:
+            clearResponse(8);
+            putInt32BE(response, 0, (int) Math.min(getBlockCount(lun) - 1, 0xFFFFFFFFL));
+            putInt32BE(response, 4, blockLength);
+            respond(8, 8);
+            break;
+        case UsbSCSI.OPCODE_SERVICE_ACTION_IN_16:
+            if ((cb[1] & 0x1F) != UsbSCSI.SERVICE_ACTION_READ_CAPACITY_16) {
+                fail(SENSE_ILLEGAL_REQUEST, ASC_INVALID_FIELD);
+                break;
+            }
+            clearResponse(UsbSCSI.READ_CAPACITY_16_LENGTH);
+            long lastLBA = getBlockCount(lun) - 1;
+            putInt32BE(response, 0, (int) (lastLBA >>> 32));
+            putInt32BE(response, 4, (int) lastLBA);
+            putInt32BE(response, 8, blockLength);
+            respond(UsbSCSI.READ_CAPACITY_16_LENGTH, getInt32BE(cb, 10));
+            break;
+        case UsbSCSI.OPCODE_READ_10:
+        case UsbSCSI.OPCODE_WRITE_10:
+            transfer(getInt32BE(cb, 2) & 0xFFFFFFFFL, ((cb[7] & 0xFF) << 8) | (cb[8] & 0xFF));
+            break;
+        case UsbSCSI.OPCODE_READ_16:
+        case UsbSCSI.OPCODE_WRITE_16:
+            transfer(((long) getInt32BE(cb, 2) << 32) | (getInt32BE(cb, 6) & 0xFFFFFFFFL),
+                    getInt32BE(cb, 10) & 0xFFFFFFFFL);
+            break;
+        case UsbSCSI.OPCODE_SYNCHRONIZE_CACHE_10:
+            if (images[lun] instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) images[lun]).force();
+            }
+            break;
+        default:
+            fail(SENSE_ILLEGAL_REQUEST, ASC_INVALID_OPCODE);
+            break;
+        }
+        if (deviceLength > 0 && isDeviceIn() != hostIn) {
+            // Host and device disagree on the direction.
+            status = STATUS_PHASE_ERROR;
+            deviceLength = 0;
+        }
+    }
+
+    private void transfer(long lba, long blocks) {
+        if (lba + blocks > getBlockCount(lun)) {
+            fail(SENSE_ILLEGAL_REQUEST, ASC_LBA_OUT_OF_RANGE);
+            return;
+        }
+        if (!isDeviceIn() && images[lun].isReadOnly()) {
+            fail(SENSE_DATA_PROTECT, ASC_WRITE_PROTECTED);
+            return;
+        }
+        long length = blocks * blockLength;
+        if (length > expectedLength) {
+            status = STATUS_PHASE_ERROR;
+            return;
+        }
+        position = lba * blockLength;
+        deviceLength = (int) length;
+        mediumTransfer = true;
+    }
+
+    private void respond(int length, int allocationLength) {
+        deviceLength = Math.min(length, Math.min(allocationLength, expectedLength));
+    }
+
+    private void clearResponse(int length) {
+        for (int i = 0; i < length; i++) {
+            response[i] = 0;
+        }
+    }
+
+    private void fail(byte key, byte asc) {
+        senseKey = key;
+        additionalSenseCode = asc;
+        status = STATUS_FAILED;
+        deviceLength = 0;
+    }
+
+    private boolean consumeStall(int phase) {
+        if (stalls[phase] > 0) {
+            stalls[phase]--;
+            return true;
+        }
+        return false;
+    }
+
+    private void checkAbort(EmulatedUsbPipe pipe, int generation) throws UsbAbortException {
+        if (pipe.getAbortGeneration() != generation) {
+            throw new UsbAbortException("Submission aborted");
+        }
+    }
+
+    private void waitDevice() throws UsbAbortException {
+        try {
+            wait();
+        } catch (InterruptedException ex) {
+            throw new UsbAbortException("Interrupted");
+        }
+    }
+
+    /**
+     * Waits the latency of the phase without holding the device.
+     */
+    private void delay(int phase, EmulatedUsbPipe pipe, int generation) throws UsbAbortException {
+        long deadline = System.currentTimeMillis() + latencies[phase];
+        long remaining;
+        while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException ex) {
+                throw new UsbAbortException("Interrupted");
+            }
+            checkAbort(pipe, generation);
+        }
+    }
+
+    private static void putAscii(byte[] b, int offset, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            b[offset + i] = (byte) s.charAt(i);
+        }
+    }
+
+    private static int getInt32LE(byte[] b, int offset) {
+        return (b[offset] & 0xFF)
+                | ((b[offset + 1] & 0xFF) << 8)
+                | ((b[offset + 2] & 0xFF) << 16)
+                | ((b[offset + 3] & 0xFF) << 24);
+    }
+
+    private static void putInt32LE(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >> 8);
+        b[offset + 2] = (byte) (value >> 16);
+        b[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static int getInt32BE(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24)
+                | ((b[offset + 1] & 0xFF) << 16)
+                | ((b[offset + 2] & 0xFF) << 8)
+                | (b[offset + 3] & 0xFF);
+    }
+
+    private static void putInt32BE(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 24);
+        b[offset + 1] = (byte) (value >> 16);
+        b[offset + 2] = (byte) (value >> 8);
+        b[offset + 3] = (byte) value;
+    }
+}